@@ -0,0 +1,158 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.AccountManagerCallback;
+import android.accounts.AccountManagerFuture;
+import android.accounts.AuthenticatorException;
+import android.accounts.OperationCanceledException;
+import android.content.Context;
+
+import java.io.IOException;
+
+class InboxCheckerAccountCache {
+
+    private static final String ACCOUNT_TYPE_GOOGLE = "com.google";
+    private static final String[] FEATURES_MAIL = {"service_mail"};
+
+    /**
+     * Receives the account list, or hears that it couldn't be looked up. Called on the main thread
+     */
+    interface Listener {
+        void onAccountResults(Account[] accounts);
+
+        void onAccountLookupFailed();
+    }
+
+    /* The accounts from the last successful lookup, or null if they need to be looked up */
+    private static Account[] sAccounts = null;
+    /* The lookup in flight, or null if there is none */
+    private static AccountManagerFuture<Account[]> sFuture = null;
+    /* Who to deliver the lookup in flight to. Replaced on every request, cleared on pause */
+    private static Listener sListener = null;
+
+    /**
+     * Get all accounts with Gmail. If they're cached, the listener is called right away.
+     * Otherwise a lookup is started, or the one already in flight is reused, and the listener is
+     * called when it completes. Must be called on the main thread
+     *
+     * @param context  A Context to get the AccountManager with
+     * @param listener Who to deliver the accounts to
+     * @throws SecurityException If the GET_ACCOUNTS permission wasn't granted
+     */
+    static void getAccounts(Context context, Listener listener) throws SecurityException {
+        if (sAccounts != null) {
+            listener.onAccountResults(sAccounts);
+            return;
+        }
+        sListener = listener;
+        prefetch(context);
+    }
+
+    /**
+     * Start looking up the accounts if they aren't cached and no lookup is in flight, so a later
+     * getAccounts() can return without waiting on the authenticator. Must be called on the main
+     * thread
+     *
+     * @param context A Context to get the AccountManager with
+     * @throws SecurityException If the GET_ACCOUNTS permission wasn't granted
+     */
+    static void prefetch(Context context) throws SecurityException {
+        if (sAccounts != null || sFuture != null) {
+            return;
+        }
+        /* The feature check is a round trip through the authenticator, so it's slow */
+        sFuture = AccountManager.get(context.getApplicationContext())
+                .getAccountsByTypeAndFeatures(ACCOUNT_TYPE_GOOGLE, FEATURES_MAIL,
+                        new AccountManagerCallback<Account[]>() {
+                            @Override
+                            public void run(AccountManagerFuture<Account[]> future) {
+                                onLookupComplete(future);
+                            }
+                        }, null);
+    }
+
+    /**
+     * Called on the main thread when a lookup completes. Cache the results and deliver them to
+     * whoever is waiting. A failure isn't cached, the next request looks up again
+     *
+     * @param future The completed lookup
+     */
+    private static void onLookupComplete(AccountManagerFuture<Account[]> future) {
+        if (future != sFuture) {
+            /* The cache was invalidated while this was in flight, a newer lookup will deliver */
+            return;
+        }
+        sFuture = null;
+
+        Account[] accounts;
+        try {
+            accounts = future.getResult();
+            sAccounts = accounts;
+        } catch (OperationCanceledException | IOException | AuthenticatorException oce) {
+            /* Don't cache a failure, try again next time */
+            accounts = null;
+        }
+
+        Listener listener = sListener;
+        sListener = null;
+        if (listener == null) {
+            return;
+        }
+        if (accounts != null) {
+            listener.onAccountResults(accounts);
+        } else {
+            listener.onAccountLookupFailed();
+        }
+    }
+
+    /**
+     * Stop delivering to a listener, because it's going away. The lookup keeps running so its
+     * results are cached for the next request. Must be called on the main thread
+     *
+     * @param listener The listener to forget, if it's the current one
+     */
+    static void removeListener(Listener listener) {
+        if (sListener == listener) {
+            sListener = null;
+        }
+    }
+
+    /**
+     * Forget the cached accounts. This is called on the main thread when accounts are added or
+     * removed. If a listener is waiting, a fresh lookup is started for it
+     *
+     * @param context A Context to get the AccountManager with
+     */
+    static void invalidate(Context context) {
+        sAccounts = null;
+        sFuture = null;
+        if (sListener != null) {
+            try {
+                prefetch(context);
+            } catch (SecurityException e) {
+                /* The permission was revoked, the listener will ask for it when it resumes */
+                sListener = null;
+            }
+        }
+    }
+}
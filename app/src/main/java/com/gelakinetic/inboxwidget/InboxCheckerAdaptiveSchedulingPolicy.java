@@ -0,0 +1,170 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * Polls at the base interval right after a count changes, then doubles the interval for every
+ * refresh where nothing changed, up to a ceiling. The interval is stretched further while the
+ * screen is off, and goes straight to the ceiling while the device is idle. The backoff is kept in
+ * SharedPreferences, since the process rarely lives from one poll to the next
+ */
+class InboxCheckerAdaptiveSchedulingPolicy implements InboxCheckerSchedulingPolicy {
+
+    private static final String SCHEDULING_PREFS = "Scheduling";
+    private static final String KEY_STABLE_REFRESHES = "stable_refreshes";
+    private static final String KEY_LAST_INTERVAL = "last_interval_ms";
+
+    private static final long MAX_INTERVAL_MS = AlarmManager.INTERVAL_HOUR;
+    private static final int SCREEN_OFF_FACTOR = 4;
+
+    /* Stop doubling once the ceiling is reached anyway, so the shift can't overflow */
+    private static final int MAX_STABLE_REFRESHES = 16;
+
+    /* The number of refreshes in a row where nothing changed. -1 until loaded */
+    private int mStableRefreshes = -1;
+    /* The last interval picked, as persisted */
+    private long mLastIntervalMs = 0;
+
+    @Override
+    public synchronized long getIntervalMs(Context context, long baseIntervalMs) {
+        load(context);
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+
+        long interval;
+        if (isDeviceIdle(powerManager)) {
+            /* Nothing will be seen while the device is idle, so check as rarely as allowed */
+            interval = Math.max(baseIntervalMs, MAX_INTERVAL_MS);
+        } else {
+            /* Back off exponentially while the counts are stable */
+            interval = baseIntervalMs << mStableRefreshes;
+
+            /* Nobody is looking at the widget while the screen is off */
+            if (!isScreenOn(powerManager)) {
+                interval *= SCREEN_OFF_FACTOR;
+            }
+            interval = Math.max(baseIntervalMs, Math.min(interval, MAX_INTERVAL_MS));
+        }
+
+        if (interval != mLastIntervalMs) {
+            mLastIntervalMs = interval;
+            getPreferences(context).edit().putLong(KEY_LAST_INTERVAL, interval).apply();
+        }
+        return interval;
+    }
+
+    @Override
+    public synchronized void onRefreshCompleted(Context context, boolean changed) {
+        load(context);
+        if (changed) {
+            /* Mail is moving, check often */
+            setStableRefreshes(context, 0);
+        } else if (mStableRefreshes < MAX_STABLE_REFRESHES) {
+            setStableRefreshes(context, mStableRefreshes + 1);
+        }
+    }
+
+    @Override
+    public synchronized void onUserInteraction(Context context) {
+        /* The user is reading mail, so counts are about to change */
+        load(context);
+        setStableRefreshes(context, 0);
+    }
+
+    /**
+     * @param context A Context to read preferences with
+     * @return The number of refreshes in a row where nothing changed, as persisted
+     */
+    static int getStableRefreshes(Context context) {
+        return getPreferences(context).getInt(KEY_STABLE_REFRESHES, 0);
+    }
+
+    /**
+     * @param context A Context to read preferences with
+     * @return The last polling interval this policy picked, in milliseconds, or 0 if none was
+     * picked yet
+     */
+    static long getLastIntervalMs(Context context) {
+        return getPreferences(context).getLong(KEY_LAST_INTERVAL, 0);
+    }
+
+    /**
+     * Load the persisted backoff, once per process
+     *
+     * @param context A Context to read preferences with
+     */
+    private void load(Context context) {
+        if (mStableRefreshes >= 0) {
+            return;
+        }
+        SharedPreferences preferences = getPreferences(context);
+        mStableRefreshes = Math.max(0, Math.min(MAX_STABLE_REFRESHES,
+                preferences.getInt(KEY_STABLE_REFRESHES, 0)));
+        mLastIntervalMs = preferences.getLong(KEY_LAST_INTERVAL, 0);
+    }
+
+    /**
+     * Change the number of stable refreshes, and persist it if it changed
+     *
+     * @param context         A Context to write preferences with
+     * @param stableRefreshes The new number of refreshes in a row where nothing changed
+     */
+    private void setStableRefreshes(Context context, int stableRefreshes) {
+        if (stableRefreshes != mStableRefreshes) {
+            mStableRefreshes = stableRefreshes;
+            getPreferences(context).edit().putInt(KEY_STABLE_REFRESHES, stableRefreshes).apply();
+        }
+    }
+
+    /**
+     * @param context A Context to get preferences with
+     * @return The SharedPreferences the backoff is persisted in
+     */
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(SCHEDULING_PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param powerManager The PowerManager to check with
+     * @return true if the screen is on, false otherwise
+     */
+    @SuppressWarnings("deprecation")
+    private static boolean isScreenOn(PowerManager powerManager) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return powerManager.isInteractive();
+        }
+        return powerManager.isScreenOn();
+    }
+
+    /**
+     * @param powerManager The PowerManager to check with
+     * @return true if the device is in Doze, false otherwise
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static boolean isDeviceIdle(PowerManager powerManager) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && powerManager.isDeviceIdleMode();
+    }
+}
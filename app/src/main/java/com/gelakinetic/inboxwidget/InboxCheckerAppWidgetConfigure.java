@@ -21,19 +21,11 @@ package com.gelakinetic.inboxwidget;
 
 import android.Manifest;
 import android.accounts.Account;
-import android.accounts.AccountManager;
-import android.accounts.AccountManagerCallback;
-import android.accounts.AccountManagerFuture;
-import android.accounts.AuthenticatorException;
-import android.accounts.OperationCanceledException;
 import android.app.Activity;
 import android.appwidget.AppWidgetManager;
-import android.content.ComponentName;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.os.Build;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
@@ -42,17 +34,63 @@ import android.widget.Toast;
 
 import com.google.android.gm.contentprovider.GmailContract;
 
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 
-public class InboxCheckerAppWidgetConfigure extends Activity {
+public class InboxCheckerAppWidgetConfigure extends Activity
+        implements InboxCheckerAccountCache.Listener {
 
     private static final int REQUEST_CODE = 15613;
-    private static final String ACCOUNT_TYPE_GOOGLE = "com.google";
-    private static final String[] FEATURES_MAIL = {"service_mail"};
-    static final String SHARED_PREFS = "Preferences";
+
+    /* The labels a widget can show, and their names in the label picker */
+    private static final String[] LABELS = {
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_PRIORITY_INBOX,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_STARRED,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX_CATEGORY_PRIMARY,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX_CATEGORY_SOCIAL,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX_CATEGORY_PROMOTIONS,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX_CATEGORY_UPDATES,
+            GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX_CATEGORY_FORUMS
+    };
+    private static final int[] LABEL_NAMES = {
+            R.string.label_inbox,
+            R.string.label_priority_inbox,
+            R.string.label_starred,
+            R.string.label_primary,
+            R.string.label_social,
+            R.string.label_promotions,
+            R.string.label_updates,
+            R.string.label_forums
+    };
 
     private int mAppWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
 
+    /* Set once the accounts were delivered, so resuming doesn't prompt for an account again */
+    private boolean mAccountsDelivered = false;
+
+    /* The choices made so far, committed together once the last one is made */
+    private String[] mAccounts;
+    private String[] mLabels;
+    private int mAggregation = InboxCheckerWidgetConfig.AGGREGATION_SUM;
+    private String mLaunchPackage;
+    private int mPowerProfile = InboxCheckerPowerPolicy.PROFILE_BALANCED;
+    private int mQuietHours = InboxCheckerPowerPolicy.QUIET_HOURS_NONE;
+
+    /**
+     * Start looking up accounts as early as possible, if permission was already granted
+     *
+     * @param savedInstanceState Unused
+     */
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.GET_ACCOUNTS) ==
+                PackageManager.PERMISSION_GRANTED) {
+            InboxCheckerAccountCache.prefetch(this);
+        }
+    }
+
     /**
      * This is called when the widget needs configuring. It will check permissions, get accounts,
      * prompt the user to select an account, and save the widget
@@ -93,6 +131,16 @@ public class InboxCheckerAppWidgetConfigure extends Activity {
         getAccounts();
     }
 
+    /**
+     * Stop waiting for accounts. A lookup in flight still completes and is cached for when this
+     * Activity resumes, or is recreated
+     */
+    @Override
+    public void onPause() {
+        super.onPause();
+        InboxCheckerAccountCache.removeListener(this);
+    }
+
     /**
      * This is called after permissions were either granted or denied. If permissions were denied,
      * close the activity. If permissions were granted, get a list of accounts
@@ -123,26 +171,15 @@ public class InboxCheckerAppWidgetConfigure extends Activity {
 
     /**
      * Start the process to get all Inbox accounts. Will call onAccountResults() when the accounts
-     * are retrieved.
+     * are retrieved, right away if they're cached. A lookup already in flight is reused
      *
      * @throws SecurityException If permissions weren't granted, this is called
      */
     private void getAccounts() throws SecurityException {
-        /* Get all eligible accounts */
-        AccountManager.get(this).getAccountsByTypeAndFeatures(ACCOUNT_TYPE_GOOGLE, FEATURES_MAIL,
-                new AccountManagerCallback<Account[]>() {
-                    @Override
-                    public void run(AccountManagerFuture<Account[]> future) {
-                        Account[] accounts = null;
-                        try {
-                            accounts = future.getResult();
-                        } catch (OperationCanceledException | IOException |
-                                AuthenticatorException oce) {
-                            /* Eat it */
-                        }
-                        onAccountResults(accounts);
-                    }
-                }, null);
+        if (mAccountsDelivered) {
+            return;
+        }
+        InboxCheckerAccountCache.getAccounts(this, this);
     }
 
     /**
@@ -150,7 +187,9 @@ public class InboxCheckerAppWidgetConfigure extends Activity {
      *
      * @param accounts A list of accounts on this device
      */
-    private void onAccountResults(Account[] accounts) {
+    @Override
+    public void onAccountResults(Account[] accounts) {
+        mAccountsDelivered = true;
 
         /* If there are multiple accounts */
         if (accounts.length > 1) {
@@ -162,28 +201,32 @@ public class InboxCheckerAppWidgetConfigure extends Activity {
                 accountNames[idx++] = account.name;
             }
 
+            /* Badges can also add up every account, label lists show one */
+            String[] items = accountNames;
+            if (!InboxCheckerLabelListProvider.isLabelList(AppWidgetManager.getInstance(this),
+                    mAppWidgetId, null)) {
+                items = Arrays.copyOf(accountNames, accountNames.length + 1);
+                items[accountNames.length] = getString(R.string.all_accounts);
+            }
+
             /* Display a dialog to select an account */
             (new AlertDialog.Builder(this))
                     .setTitle(R.string.accounts)
-                    .setItems(accountNames, new DialogInterface.OnClickListener() {
+                    .setItems(items, new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialogInterface, int i) {
-                            /* Commit the user's choice */
-                            getSharedPreferences(SHARED_PREFS, Context.MODE_PRIVATE)
-                                    .edit()
-                                    .putString(String.valueOf(mAppWidgetId), accountNames[i])
-                                    .apply();
-                            /* Update the widget */
-                            finishAndUpdateWidget();
+                            /* Remember the user's choice */
+                            mAccounts = (i < accountNames.length)
+                                    ? new String[]{accountNames[i]}
+                                    : accountNames;
+                            /* Pick labels for the widget */
+                            showLabelDialog();
                         }
                     }).show();
         } else if (accounts.length == 1) {
             /* There's only one account, use it without prompting the user */
-            getSharedPreferences(SHARED_PREFS, Context.MODE_PRIVATE)
-                    .edit()
-                    .putString(String.valueOf(mAppWidgetId), accounts[0].name)
-                    .apply();
-            finishAndUpdateWidget();
+            mAccounts = new String[]{accounts[0].name};
+            showLabelDialog();
         } else {
             /* There are no accounts, the widget can't do anything */
             Toast.makeText(this, R.string.no_accounts, Toast.LENGTH_LONG).show();
@@ -191,55 +234,195 @@ public class InboxCheckerAppWidgetConfigure extends Activity {
     }
 
     /**
-     * This finishes the Activity and updates the widget. Appropriately named.
+     * Called if the accounts couldn't be looked up. Nothing was delivered, so the next time this
+     * Activity resumes, the accounts are looked up again
      */
-    private void finishAndUpdateWidget() {
+    @Override
+    public void onAccountLookupFailed() {
+        Toast.makeText(this, R.string.account_lookup_failed, Toast.LENGTH_LONG).show();
+    }
 
-        /* Tell the widget to update */
-        updateWidgets(getApplicationContext());
+    /**
+     * Display a dialog to select which labels the widget counts. The inbox is selected by default.
+     * Label list widgets show every label, so they skip this
+     */
+    private void showLabelDialog() {
+        if (InboxCheckerLabelListProvider.isLabelList(AppWidgetManager.getInstance(this),
+                mAppWidgetId, null)) {
+            mLabels = new String[0];
+            showLaunchDialog();
+            return;
+        }
 
-        /* Start the poll */
-        InboxCheckerPollingAlarm.setAlarm(this);
+        /* Build the list of label names */
+        String[] labelNames = new String[LABEL_NAMES.length];
+        for (int i = 0; i < LABEL_NAMES.length; i++) {
+            labelNames[i] = getString(LABEL_NAMES[i]);
+        }
+        final boolean[] checked = new boolean[LABELS.length];
+        checked[0] = true;
 
-        /* Return */
-        Intent resultValue = new Intent();
-        resultValue.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, mAppWidgetId);
-        setResult(RESULT_OK, resultValue);
-        finish();
+        (new AlertDialog.Builder(this))
+                .setTitle(R.string.labels)
+                .setMultiChoiceItems(labelNames, checked,
+                        new DialogInterface.OnMultiChoiceClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i,
+                                                boolean isChecked) {
+                                checked[i] = isChecked;
+                            }
+                        })
+                .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        /* Gather the checked labels, falling back to the inbox */
+                        ArrayList<String> labels = new ArrayList<>();
+                        for (int j = 0; j < LABELS.length; j++) {
+                            if (checked[j]) {
+                                labels.add(LABELS[j]);
+                            }
+                        }
+                        if (labels.isEmpty()) {
+                            labels.add(LABELS[0]);
+                        }
+                        mLabels = labels.toArray(new String[labels.size()]);
+
+                        if (mLabels.length > 1 || mAccounts.length > 1) {
+                            /* Ask how to combine the counts */
+                            showAggregationDialog();
+                        } else {
+                            mAggregation = InboxCheckerWidgetConfig.AGGREGATION_SUM;
+                            showLaunchDialog();
+                        }
+                    }
+                }).show();
     }
 
     /**
-     * Sends a broadcast to call onUpdate() for the Inbox Widgets
-     *
-     * @param context A context to send the broadcast
+     * Display a dialog to select whether multiple counts are summed or broken down. A widget
+     * showing all accounts breaks the counts down by account, otherwise by label
      */
-    public static void updateWidgets(Context context) {
-        context.sendBroadcast(getUpdateWidgetIntent(context));
+    private void showAggregationDialog() {
+        (new AlertDialog.Builder(this))
+                .setTitle(R.string.aggregation)
+                .setItems(new String[]{
+                        getString(R.string.aggregation_sum),
+                        getString(mAccounts.length > 1
+                                ? R.string.aggregation_breakdown_accounts
+                                : R.string.aggregation_breakdown)
+                }, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        mAggregation = (i == 0)
+                                ? InboxCheckerWidgetConfig.AGGREGATION_SUM
+                                : InboxCheckerWidgetConfig.AGGREGATION_BREAKDOWN;
+                        showLaunchDialog();
+                    }
+                }).show();
     }
 
     /**
-     * @param context A context to build the intent with
-     * @return An Intent which will call onUpdate for all Inbox Widgets
+     * Display a dialog to select which mail app the widget opens, if more than one is installed.
+     * Otherwise the widget opens whichever is installed
      */
-    private static Intent getUpdateWidgetIntent(Context context) {
-        /* Get an intent for the InboxCheckerAppWidgetProvider class */
-        Intent intent = new Intent(context.getApplicationContext(),
-                InboxCheckerAppWidgetProvider.class);
-        /* Tell it to update widgets */
-        intent.setAction(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
-
-        /* Get a list of IDs for all the widgets */
-        AppWidgetManager widgetManager = AppWidgetManager.getInstance(context);
-        int[] ids = widgetManager.getAppWidgetIds(new ComponentName(context,
-                InboxCheckerAppWidgetProvider.class));
-
-        /* Tell the intent which widgets to update */
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            widgetManager.notifyAppWidgetViewDataChanged(ids, android.R.id.list);
+    private void showLaunchDialog() {
+        /* Find the mail apps which are installed */
+        final ArrayList<String> packages = new ArrayList<>();
+        ArrayList<String> appNames = new ArrayList<>();
+        for (String packageName : InboxCheckerLaunchTarget.PACKAGES) {
+            if (InboxCheckerLaunchTarget.isInstalled(this, packageName)) {
+                packages.add(packageName);
+                appNames.add(getString(InboxCheckerLaunchTarget.PACKAGE_INBOX.equals(packageName)
+                        ? R.string.app_inbox : R.string.app_gmail));
+            }
         }
-        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, ids);
 
-        /* Return the intent */
-        return intent;
+        if (packages.size() < 2) {
+            showPowerDialog();
+            return;
+        }
+
+        (new AlertDialog.Builder(this))
+                .setTitle(R.string.open_with)
+                .setItems(appNames.toArray(new String[appNames.size()]),
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialogInterface, int i) {
+                                mLaunchPackage = packages.get(i);
+                                showPowerDialog();
+                            }
+                        }).show();
+    }
+
+    /**
+     * Display a dialog to select how hard the widget tries to stay current, against battery use
+     */
+    private void showPowerDialog() {
+        (new AlertDialog.Builder(this))
+                .setTitle(R.string.power_profile)
+                .setItems(new String[]{
+                        getString(R.string.power_profile_realtime),
+                        getString(R.string.power_profile_balanced),
+                        getString(R.string.power_profile_saver)
+                }, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        /* The items are in the same order as the profile constants */
+                        mPowerProfile = i;
+                        showQuietHoursDialog();
+                    }
+                }).show();
+    }
+
+    /**
+     * Display a dialog to select when the widget doesn't poll at all
+     */
+    private void showQuietHoursDialog() {
+        (new AlertDialog.Builder(this))
+                .setTitle(R.string.quiet_hours)
+                .setItems(new String[]{
+                        getString(R.string.quiet_hours_none),
+                        getString(R.string.quiet_hours_night),
+                        getString(R.string.quiet_hours_work)
+                }, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        /* The items are in the same order as the quiet hours constants */
+                        mQuietHours = i;
+                        finishAndUpdateWidget();
+                    }
+                }).show();
+    }
+
+    /**
+     * This finishes the Activity and updates the widget. Appropriately named.
+     */
+    private void finishAndUpdateWidget() {
+
+        /* Commit the user's choices */
+        InboxCheckerWidgetRegistry.put(this, mAppWidgetId,
+                new InboxCheckerWidgetConfig(mAccounts, mLabels, mAggregation, mLaunchPackage,
+                        mPowerProfile, mQuietHours));
+
+        /* Force fresh counts and a full render for the new widget. Whatever was failing may have
+         * been fixed, so query every account again
+         */
+        InboxCheckerCircuitBreaker.reset(this);
+        for (String account : mAccounts) {
+            InboxCheckerUnreadCache.invalidate(account);
+        }
+        InboxCheckerRenderState.invalidate(this, mAppWidgetId);
+
+        /* Render just this widget, in process */
+        InboxCheckerAppWidgetProvider.refresh(this, new int[]{mAppWidgetId}, false, null);
+
+        /* Start the poll */
+        InboxCheckerPollingAlarm.setAlarm(this);
+
+        /* Return */
+        Intent resultValue = new Intent();
+        resultValue.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, mAppWidgetId);
+        setResult(RESULT_OK, resultValue);
+        finish();
     }
 }
@@ -19,23 +19,76 @@
 
 package com.gelakinetic.inboxwidget;
 
-import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
+import android.util.SparseArray;
 import android.view.View;
 import android.widget.RemoteViews;
+import android.widget.Toast;
 
+import com.gelakinetic.inboxwidget.core.InboxCheckerBadge;
+import com.gelakinetic.inboxwidget.core.InboxCheckerLabelScanner;
 import com.google.android.gm.contentprovider.GmailContract;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 public class InboxCheckerAppWidgetProvider extends AppWidgetProvider {
 
+    /* Account queries run in parallel on a few threads, enough for a handful of accounts. If the
+     * queue fills up, queries are rejected rather than run on the refresh thread, where one stuck
+     * provider would hold up every widget
+     */
+    private static final int QUERY_THREADS = 4;
+    private static final int QUERY_QUEUE_SIZE = 32;
+
+    /* How long one account's query may take before its widgets are rendered without it */
+    private static final long ACCOUNT_TIMEOUT_MS = 1000 * 4;
+
+    private static final ThreadPoolExecutor sQueryExecutor = new ThreadPoolExecutor(
+            QUERY_THREADS, QUERY_THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(QUERY_QUEUE_SIZE),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    /* The latest query of each account, and the labels it counts, and the latest read of each
+     * account's label list. A provider call can't be interrupted, so a query which timed out
+     * keeps running, and the next cycle waits on it instead of starting another behind it. Only
+     * touched on the refresh thread
+     */
+    private static final HashMap<String, Future<int[]>> sInFlightQueries = new HashMap<>();
+    private static final HashMap<String, String[]> sInFlightLabels = new HashMap<>();
+    private static final HashMap<String, Future<InboxCheckerLabelListProvider.RowHashes>>
+            sInFlightLists = new HashMap<>();
+
+    static {
+        /* Don't keep idle threads around between polls */
+        sQueryExecutor.allowCoreThreadTimeOut(true);
+    }
+
     /**
-     * Called periodically by InboxCheckerPollingAlarm in order to check if there is any unread
-     * mail, and update the widgets if there is.
+     * Called by the system when widgets are added, or when their update period elapses. The
+     * widgets are refreshed the same way the app refreshes them itself, but with fresh counts and
+     * rendered in full, since the host may have been reset
      *
      * @param context          The Context in which this receiver is running.
      * @param appWidgetManager A AppWidgetManager object you can call
@@ -45,77 +98,737 @@ public class InboxCheckerAppWidgetProvider extends AppWidgetProvider {
      *                         them.
      */
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        InboxCheckerUnreadCache.invalidateAll();
+        refresh(context, appWidgetIds, true, goAsync());
+    }
+
+    /**
+     * Called by the system when widgets are deleted. Everything kept for them is dropped
+     *
+     * @param context      The Context in which this receiver is running.
+     * @param appWidgetIds The appWidgetIds that have been deleted from their host.
+     */
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        InboxCheckerWidgetLifecycle.onDeleted(context, appWidgetIds, goAsync());
+    }
 
-        /* Perform this loop procedure for each App Widget that belongs to this provider */
-        for (int appWidgetId : appWidgetIds) {
-            /* Create an Intent to launch Inbox */
-            Intent intent = context.getPackageManager()
-                    .getLaunchIntentForPackage("com.google.android.apps.inbox");
-            PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, intent, 0);
+    /**
+     * Called by the system when the last badge widget is deleted. Polling stops if no widget of
+     * either kind is left
+     *
+     * @param context The Context in which this receiver is running.
+     */
+    @Override
+    public void onDisabled(Context context) {
+        InboxCheckerPollingAlarm.onWidgetsRemoved(context);
+    }
 
-            /* Get the layout for the App Widget and attach an on-click listener to the button */
-            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.inbox_widget);
-            views.setOnClickPendingIntent(R.id.imageView, pendingIntent);
-
-            /* Get the account associated with this widget */
-            String account = context
-                    .getSharedPreferences(InboxCheckerAppWidgetConfigure.SHARED_PREFS,
-                            Context.MODE_PRIVATE)
-                    .getString(Integer.toString(appWidgetId), null);
-            /* Attempt to query for the number of unread messages */
-            if (account != null) {
-                int unread = getUnreadMailCount(context, account);
-                if (unread > 0) {
-                    /* Set the badge text if there is unread mail */
-                    views.setTextViewText(R.id.unreadCount, Integer.toString(unread));
-                    views.setViewVisibility(R.id.unreadCount, View.VISIBLE);
+    /**
+     * Called by the system when widgets are restored from a backup with new IDs
+     *
+     * @param context      The Context in which this receiver is running.
+     * @param oldWidgetIds The appWidgetIds the widgets had when they were backed up.
+     * @param newWidgetIds The appWidgetIds the widgets have now, in the same order.
+     */
+    @Override
+    public void onRestored(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
+        InboxCheckerWidgetLifecycle.onRestored(context, oldWidgetIds, newWidgetIds, goAsync());
+    }
+
+    /**
+     * Check if there is any unread mail for some widgets, and update the ones whose badge
+     * changed. This is called directly by the polling alarm, the label observers, and the
+     * configuration Activity, so the refresh doesn't go through the broadcast queue. Requests
+     * which land close together are coalesced by InboxCheckerRefreshCoordinator into one cycle
+     *
+     * @param context       A Context to query and render with
+     * @param appWidgetIds  The widgets to refresh
+     * @param fullRender    true to render the widgets in full even if their badge didn't change,
+     *                      false to send only what changed
+     * @param pendingResult The broadcast to finish once the widgets are rendered, or null if the
+     *                      caller isn't a broadcast receiver
+     */
+    static void refresh(Context context, int[] appWidgetIds, boolean fullRender,
+                        PendingResult pendingResult) {
+        InboxCheckerRefreshCoordinator.request(context, appWidgetIds, fullRender, pendingResult);
+    }
+
+    /**
+     * Handle widget clicks here, and pass everything else to AppWidgetProvider
+     *
+     * @param context The Context in which the receiver is running.
+     * @param intent  The Intent being received.
+     */
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (InboxCheckerLaunchTarget.ACTION_OPEN_INBOX.equals(intent.getAction())) {
+            /* The user is about to read mail, so poll sooner */
+            InboxCheckerPollingAlarm.onUserInteraction(context);
+
+            /* Resolving the launch intent asks the package manager, on the main thread */
+            StrictMode.noteSlowCall("InboxChecker.getLaunchIntent");
+
+            /* Open the mail app this widget was configured with, or whichever is installed */
+            InboxCheckerWidgetConfig config = InboxCheckerWidgetRegistry.get(context,
+                    intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID,
+                            AppWidgetManager.INVALID_APPWIDGET_ID));
+            Intent launchIntent = InboxCheckerLaunchTarget.getLaunchIntent(context,
+                    config != null ? config.launchPackage : null);
+            if (launchIntent != null) {
+                launchIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                context.startActivity(launchIntent);
+            } else {
+                Toast.makeText(context, R.string.no_launch_target, Toast.LENGTH_LONG).show();
+            }
+            return;
+        }
+        super.onReceive(context, intent);
+    }
+
+    /**
+     * Query the unread counts for the given widgets and render any widgets whose badge changed.
+     * This blocks, so it must only be called on the InboxCheckerRefreshCoordinator thread
+     *
+     * @param context          A Context to query and render with
+     * @param appWidgetManager The AppWidgetManager to update widgets with
+     * @param appWidgetIds     The appWidgetIds to update
+     * @param deadline         The elapsedRealtime() after which slow queries are abandoned
+     * @return true if any widget's unread count changed, false otherwise
+     */
+    static boolean updateWidgets(final Context context, AppWidgetManager appWidgetManager,
+                                 int[] appWidgetIds, long deadline) {
+
+        long cycleStart = SystemClock.elapsedRealtime();
+        InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_CYCLES, 1);
+
+        /* Get the configuration of each widget from memory */
+        boolean changed = false;
+        InboxCheckerWidgetConfig[] configs = new InboxCheckerWidgetConfig[appWidgetIds.length];
+        boolean[] isLabelList = new boolean[appWidgetIds.length];
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            configs[i] = InboxCheckerWidgetRegistry.get(context, appWidgetIds[i]);
+            isLabelList[i] = InboxCheckerLabelListProvider.isLabelList(appWidgetManager,
+                    appWidgetIds[i], configs[i]);
+        }
+
+        /* Label lists show every label, so they read their account's whole label list. Start
+         * one read per distinct account, alongside the badge queries below
+         */
+        HashMap<String, Future<InboxCheckerLabelListProvider.RowHashes>> listQueries =
+                new HashMap<>();
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            if (!isLabelList[i] || configs[i] == null ||
+                    listQueries.containsKey(configs[i].account)) {
+                continue;
+            }
+            final String account = configs[i].account;
+            if (!InboxCheckerCircuitBreaker.allowQuery(context, account)) {
+                /* The account keeps failing, leave its lists as they are until the next probe */
+                InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_QUERIES_BLOCKED, 1);
+                continue;
+            }
+            Future<InboxCheckerLabelListProvider.RowHashes> query = startQuery(sInFlightLists,
+                    account, new Callable<InboxCheckerLabelListProvider.RowHashes>() {
+                        @Override
+                        public InboxCheckerLabelListProvider.RowHashes call() {
+                            return InboxCheckerLabelListProvider.readRowHashes(context, account);
+                        }
+                    });
+            if (query != null) {
+                listQueries.put(account, query);
+            }
+        }
+
+        /* Gather every label wanted from each account, so all of an account's widgets are served
+         * by one pass over one cursor
+         */
+        HashMap<String, LinkedHashSet<String>> accountLabels = new HashMap<>();
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            if (configs[i] == null || isLabelList[i]) {
+                continue;
+            }
+            for (String account : configs[i].accounts) {
+                LinkedHashSet<String> wanted = accountLabels.get(account);
+                if (wanted == null) {
+                    wanted = new LinkedHashSet<>();
+                    accountLabels.put(account, wanted);
+                }
+                Collections.addAll(wanted, configs[i].labels);
+            }
+        }
+
+        /* Use cached counts where possible, and start one query per distinct account which isn't
+         * cached, so each account is queried at most once per cycle
+         */
+        HashMap<String, int[]> counts = new HashMap<>();
+        HashMap<String, String[]> queriedLabels = new HashMap<>();
+        HashMap<String, Future<int[]>> queries = new HashMap<>();
+        for (Map.Entry<String, LinkedHashSet<String>> entry : accountLabels.entrySet()) {
+            final String account = entry.getKey();
+            final String[] wanted = entry.getValue().toArray(new String[entry.getValue().size()]);
+            queriedLabels.put(account, wanted);
+
+            int[] unread = InboxCheckerUnreadCache.get(account, wanted);
+            if (unread != null) {
+                InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_CACHE_HITS, 1);
+                counts.put(account, unread);
+            } else if (!InboxCheckerCircuitBreaker.allowQuery(context, account)) {
+                /* The account keeps failing, don't burn an IPC on it until the next probe */
+                InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_QUERIES_BLOCKED, 1);
+            } else {
+                Future<int[]> query = startQuery(context, account, wanted);
+                if (query != null) {
+                    queries.put(account, query);
+                }
+            }
+        }
+
+        /* Collect the query results as they come back. The queries run in parallel, so waiting
+         * costs about as long as the slowest one. Give up on any that take longer than an account
+         * is allowed, or miss the deadline, and leave their widgets as they are
+         */
+        long accountDeadline = Math.min(deadline,
+                SystemClock.elapsedRealtime() + ACCOUNT_TIMEOUT_MS);
+        HashSet<String> freshAccounts = new HashSet<>();
+        for (Map.Entry<String, Future<int[]>> query : queries.entrySet()) {
+            int[] unread = awaitQuery(context, sInFlightQueries, query.getKey(),
+                    query.getValue(), accountDeadline);
+            if (unread != null) {
+                InboxCheckerUnreadCache.put(query.getKey(), queriedLabels.get(query.getKey()),
+                        unread);
+                counts.put(query.getKey(), unread);
+                freshAccounts.add(query.getKey());
+            }
+        }
+        HashMap<String, InboxCheckerLabelListProvider.RowHashes> listHashes = new HashMap<>();
+        for (Map.Entry<String, Future<InboxCheckerLabelListProvider.RowHashes>> query :
+                listQueries.entrySet()) {
+            listHashes.put(query.getKey(), awaitQuery(context, sInFlightLists, query.getKey(),
+                    query.getValue(), accountDeadline));
+        }
+
+        /* Reload the label lists whose rows changed */
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            if (isLabelList[i]) {
+                changed |= InboxCheckerLabelListProvider.updateList(context, appWidgetManager,
+                        appWidgetIds[i], configs[i],
+                        configs[i] == null ? null : listHashes.get(configs[i].account));
+            }
+        }
+
+        /* Render each App Widget that belongs to this provider */
+        HashSet<String> recordedKeys = new HashSet<>();
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            if (isLabelList[i]) {
+                continue;
+            }
+
+            /* Keep a history of what the widget shows, once per badge and only for fresh counts */
+            if (configs[i] != null && recordedKeys.add(configs[i].historyKey)) {
+                int total = getShownTotal(configs[i], counts, queriedLabels, freshAccounts);
+                if (total != InboxCheckerBadge.UNKNOWN_COUNT) {
+                    InboxCheckerUnreadHistory.record(context, configs[i].historyKey, total);
+                }
+            }
+
+            /* Figure out what the badge should show */
+            String state = InboxCheckerRenderState.STATE_NO_ACCOUNT;
+            if (configs[i] != null && configs[i].isMultiAccount()) {
+                state = getAccountsText(context, configs[i], counts, queriedLabels);
+                if (state == null) {
+                    /* Every account's query failed or timed out */
+                    continue;
+                }
+            } else if (configs[i] != null) {
+                int[] unread = counts.get(configs[i].account);
+                if (unread == null &&
+                        InboxCheckerCircuitBreaker.isOpen(context, configs[i].account)) {
+                    /* The account keeps failing, say so instead of showing a stale count */
+                    state = InboxCheckerRenderState.STATE_ERROR;
+                } else if (unread == null) {
+                    /* The query failed or timed out, the next cycle will try again */
+                    continue;
                 } else {
-                    /* Clear the badge if there is no unread mail */
-                    views.setViewVisibility(R.id.unreadCount, View.GONE);
+                    state = InboxCheckerBadge.getText(queriedLabels.get(configs[i].account),
+                            unread, configs[i].labels, configs[i].aggregation);
                 }
             }
 
-            /* Tell the AppWidgetManager to perform an update on the current app widget */
-            appWidgetManager.updateAppWidget(appWidgetId, views);
+            /* If the widget already shows this, don't make the launcher render it again */
+            int render = InboxCheckerRenderState.update(context, appWidgetIds[i], state);
+            if (render == InboxCheckerRenderState.RENDER_NONE) {
+                InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_UPDATES_SKIPPED, 1);
+                continue;
+            }
+            /* An error isn't new mail, so it shouldn't make the policy poll any sooner */
+            if (!InboxCheckerRenderState.STATE_NO_ACCOUNT.equals(state) &&
+                    !InboxCheckerRenderState.STATE_ERROR.equals(state)) {
+                changed = true;
+            }
+
+            if (render == InboxCheckerRenderState.RENDER_PARTIAL) {
+                /* Only the badge changed, so only send the badge. The host merges it into the
+                 * views it already has
+                 */
+                RemoteViews views = buildBadgeViews(context, state);
+                TraceCompat.beginSection("InboxChecker.partiallyUpdateAppWidget");
+                try {
+                    appWidgetManager.partiallyUpdateAppWidget(appWidgetIds[i], views);
+                } finally {
+                    TraceCompat.endSection();
+                }
+                InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_UPDATES_PARTIAL, 1);
+            } else {
+                /* Tell the AppWidgetManager to perform an update on the current app widget */
+                RemoteViews views = buildViews(context, appWidgetIds[i], state, false);
+                TraceCompat.beginSection("InboxChecker.updateAppWidget");
+                try {
+                    appWidgetManager.updateAppWidget(appWidgetIds[i], views);
+                } finally {
+                    TraceCompat.endSection();
+                }
+            }
+            InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_UPDATES_APPLIED, 1);
         }
+
+        InboxCheckerMetrics.record(InboxCheckerMetrics.HISTOGRAM_CYCLE_MS,
+                SystemClock.elapsedRealtime() - cycleStart);
+        return changed;
     }
 
     /**
-     * Returns the number of unread mails in the inbox for a given account
+     * Start a query of an account's unread counts, or reuse the one an earlier cycle gave up on if
+     * it's still running. This must only be called on the refresh thread
      *
      * @param context A context to query with
      * @param account The account name to query
-     * @return The number of unread messages in the inbox for the given account
-     */
-    private static int getUnreadMailCount(Context context, String account) {
-
-        int unread = 0;
-        Uri labelsUri = GmailContract.Labels.getLabelsUri(account);
-        Cursor cursor = context.getContentResolver().query(
-                labelsUri, /* The content URI of the words table */
-                null,      /* The columns to return for each row */
-                null,      /* Selection criteria */
-                null,      /* Selection criteria */
-                null);     /* The sort order for the returned rows */
-
-        /* If the query was successful */
-        if (cursor != null) {
-            /* Iterate over the entire cursor */
-            cursor.moveToFirst();
-            while (!cursor.isAfterLast()) {
-                /* If the name matches CANONICAL_NAME_INBOX */
-                String name = cursor
-                        .getString(cursor.getColumnIndex(GmailContract.Labels.CANONICAL_NAME));
-                if (name.equals(GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX)) {
-                    /* Get the unread mail count */
-                    unread = cursor.getInt(
-                            cursor.getColumnIndex(GmailContract.Labels.NUM_UNREAD_CONVERSATIONS));
-                    break;
+     * @param labels  The canonical names of the labels to count
+     * @return The query, or null if none could be started this cycle
+     */
+    private static Future<int[]> startQuery(final Context context, final String account,
+                                            final String[] labels) {
+        Future<int[]> running = sInFlightQueries.get(account);
+        if (running != null && !running.isDone() &&
+                !Arrays.equals(sInFlightLabels.get(account), labels)) {
+            /* It counts other labels, so let it finish before asking the provider again */
+            InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_QUERIES_REJECTED, 1);
+            return null;
+        }
+
+        Future<int[]> query = startQuery(sInFlightQueries, account, new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                return getUnreadMailCounts(context, account, labels);
+            }
+        });
+        if (query != null) {
+            sInFlightLabels.put(account, labels);
+        }
+        return query;
+    }
+
+    /**
+     * Start a query on the query threads, or reuse the account's query if an earlier cycle gave
+     * up on it and it's still running. This must only be called on the refresh thread
+     *
+     * @param inFlight The latest query of each account, of the same kind as this one
+     * @param account  The account name being queried
+     * @param query    The query to start
+     * @param <T>      What the query reads
+     * @return The query, or null if none could be started this cycle
+     */
+    private static <T> Future<T> startQuery(HashMap<String, Future<T>> inFlight, String account,
+                                            Callable<T> query) {
+        Future<T> running = inFlight.get(account);
+        if (running != null && !running.isDone()) {
+            return running;
+        }
+
+        try {
+            running = sQueryExecutor.submit(query);
+        } catch (RejectedExecutionException e) {
+            /* Every thread and queue slot is taken by slow queries. Skip this account until some
+             * finish, the next cycle will try again
+             */
+            InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_QUERIES_REJECTED, 1);
+            return null;
+        }
+        inFlight.put(account, running);
+        return running;
+    }
+
+    /**
+     * Wait for a query until the deadline, and let the account's circuit breaker know how it went.
+     * A query which is still running at the deadline is kept, so the next cycle waits on it again.
+     * This must only be called on the refresh thread
+     *
+     * @param context  A context to check the provider with
+     * @param inFlight The latest query of each account, of the same kind as this one
+     * @param account  The account name being queried
+     * @param query    The query to wait for
+     * @param deadline The elapsedRealtime() after which the query is abandoned
+     * @param <T>      What the query reads
+     * @return What the query read, or null if it failed or didn't finish in time
+     */
+    private static <T> T awaitQuery(Context context, HashMap<String, Future<T>> inFlight,
+                                    String account, Future<T> query, long deadline) {
+        try {
+            long remaining = Math.max(0, deadline - SystemClock.elapsedRealtime());
+            T result = query.get(remaining, TimeUnit.MILLISECONDS);
+            inFlight.remove(account);
+            if (result == null) {
+                /* The provider is missing, or wouldn't let us read it */
+                InboxCheckerCircuitBreaker.onFailure(context, account);
+                return null;
+            }
+            InboxCheckerCircuitBreaker.onSuccess(context, account);
+            return result;
+        } catch (TimeoutException | InterruptedException e) {
+            /* The query is still running, the next cycle will wait on it again */
+            InboxCheckerMetrics.recordFailure(account);
+            InboxCheckerCircuitBreaker.onFailure(context, account);
+            return null;
+        } catch (ExecutionException e) {
+            /* The next cycle will try again */
+            inFlight.remove(account);
+            InboxCheckerMetrics.recordFailure(account);
+            InboxCheckerCircuitBreaker.onFailure(context, account);
+            return null;
+        }
+    }
+
+    /**
+     * Add up the unread counts a widget shows, over all of its accounts and labels
+     *
+     * @param config        The widget's configuration
+     * @param counts        The unread counts of each account which answered
+     * @param queriedLabels The labels queried from each account, in the same order as counts
+     * @param freshAccounts The accounts whose counts were queried this cycle, not cached
+     * @return The total, or UNKNOWN_COUNT if an account didn't answer or no count is fresh
+     */
+    private static int getShownTotal(InboxCheckerWidgetConfig config,
+                                     HashMap<String, int[]> counts,
+                                     HashMap<String, String[]> queriedLabels,
+                                     HashSet<String> freshAccounts) {
+        int total = 0;
+        boolean fresh = false;
+        for (String account : config.accounts) {
+            int[] unread = counts.get(account);
+            if (unread == null) {
+                return InboxCheckerBadge.UNKNOWN_COUNT;
+            }
+            total += InboxCheckerBadge.getTotal(queriedLabels.get(account), unread,
+                    config.labels);
+            fresh |= freshAccounts.contains(account);
+        }
+        return fresh ? total : InboxCheckerBadge.UNKNOWN_COUNT;
+    }
+
+    /**
+     * Build the badge text for a widget which adds up several accounts. Accounts which didn't
+     * answer in time are left out, so a slow account doesn't hold back the others
+     *
+     * @param context       A Context to check the circuit breakers with
+     * @param config        The widget's configuration
+     * @param counts        The unread counts of each account which answered
+     * @param queriedLabels The labels queried from each account, in the same order as counts
+     * @return The text to show on the badge, STATE_ERROR if every account keeps failing, or null
+     * if no account answered
+     */
+    private static String getAccountsText(Context context, InboxCheckerWidgetConfig config,
+                                          HashMap<String, int[]> counts,
+                                          HashMap<String, String[]> queriedLabels) {
+        int[] totals = new int[config.accounts.length];
+        boolean answered = false;
+        boolean allOpen = true;
+        for (int i = 0; i < config.accounts.length; i++) {
+            int[] unread = counts.get(config.accounts[i]);
+            if (unread == null) {
+                totals[i] = InboxCheckerBadge.UNKNOWN_COUNT;
+                allOpen &= InboxCheckerCircuitBreaker.isOpen(context, config.accounts[i]);
+            } else {
+                totals[i] = InboxCheckerBadge.getTotal(queriedLabels.get(config.accounts[i]),
+                        unread, config.labels);
+                answered = true;
+            }
+        }
+        if (answered) {
+            return InboxCheckerBadge.getAccountsText(totals, config.aggregation);
+        }
+        return allOpen ? InboxCheckerRenderState.STATE_ERROR : null;
+    }
+
+    /**
+     * Render every widget with the badge it showed before the device rebooted, marked as stale.
+     * No provider is queried, so this is cheap enough for the BOOT_COMPLETED window. The next
+     * refresh replaces the stale badges
+     *
+     * @param context       A Context to render with
+     * @param pendingResult The boot broadcast, finished once the widgets are rendered
+     */
+    static void renderSnapshot(Context context, final PendingResult pendingResult) {
+        final Context appContext = context.getApplicationContext();
+        InboxCheckerRefreshCoordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(appContext);
+                    SparseArray<InboxCheckerWidgetConfig> configs =
+                            InboxCheckerWidgetRegistry.getAll(appContext);
+                    SparseArray<String> snapshot = InboxCheckerRenderState.getSnapshot(appContext);
+                    for (int i = 0; i < configs.size(); i++) {
+                        String state = snapshot.get(configs.keyAt(i));
+                        if (state == null || configs.valueAt(i).isLabelList()) {
+                            /* Never rendered, or not a badge. The refresh will take care of it */
+                            continue;
+                        }
+                        appWidgetManager.updateAppWidget(configs.keyAt(i),
+                                buildViews(appContext, configs.keyAt(i), state, true));
+                    }
+                } finally {
+                    pendingResult.finish();
                 }
-                cursor.moveToNext();
             }
+        });
+    }
+
+    /**
+     * Build the views for a widget showing a badge state
+     *
+     * @param context     A Context to build the views with
+     * @param appWidgetId The widget being rendered
+     * @param state       The text shown on the badge, STATE_HIDDEN, STATE_NO_ACCOUNT, or
+     *                    STATE_ERROR
+     * @param stale       true to mark the badge as a count from before boot, false otherwise
+     * @return The views to update the widget with
+     */
+    private static RemoteViews buildViews(Context context, int appWidgetId, String state,
+                                          boolean stale) {
+        TraceCompat.beginSection("InboxChecker.buildViews");
+        try {
+            /* Get the layout for the App Widget and attach an on-click listener to the button.
+             * The click goes through this provider to launch the mail app
+             */
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.inbox_widget);
+            views.setOnClickPendingIntent(R.id.imageView,
+                    InboxCheckerLaunchTarget.getClickIntent(context, appWidgetId));
+            setBadge(views, state);
+            if (stale && !InboxCheckerRenderState.STATE_HIDDEN.equals(state) &&
+                    !InboxCheckerRenderState.STATE_NO_ACCOUNT.equals(state)) {
+                views.setInt(R.id.unreadCount, "setBackgroundResource", R.drawable.badge_stale);
+            } else if (InboxCheckerRenderState.STATE_ERROR.equals(state)) {
+                views.setInt(R.id.unreadCount, "setBackgroundResource", R.drawable.badge_error);
+            }
+            return views;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * Build views which only change a widget's badge, for partiallyUpdateAppWidget(). The host
+     * keeps whatever it was last sent, so the badge's background is reset too, in case the widget
+     * still shows a stale or error badge the render state doesn't know about
+     *
+     * @param context A Context to build the views with
+     * @param state   The text shown on the badge, or STATE_HIDDEN
+     * @return The views to partially update the widget with
+     */
+    private static RemoteViews buildBadgeViews(Context context, String state) {
+        TraceCompat.beginSection("InboxChecker.buildBadgeViews");
+        try {
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.inbox_widget);
+            setBadge(views, state);
+            views.setInt(R.id.unreadCount, "setBackgroundResource", R.drawable.badge);
+            return views;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * Set the badge text and visibility for a state
+     *
+     * @param views The views to set the badge on
+     * @param state The text shown on the badge, STATE_HIDDEN, or STATE_NO_ACCOUNT
+     */
+    private static void setBadge(RemoteViews views, String state) {
+        if (InboxCheckerRenderState.STATE_HIDDEN.equals(state)) {
+            /* Clear the badge if there is no unread mail */
+            views.setViewVisibility(R.id.unreadCount, View.GONE);
+        } else if (!InboxCheckerRenderState.STATE_NO_ACCOUNT.equals(state)) {
+            /* Set the badge text if there is unread mail */
+            views.setTextViewText(R.id.unreadCount, state);
+            views.setViewVisibility(R.id.unreadCount, View.VISIBLE);
+        }
+    }
+
+    /* Set once the provider throws on the canonical name selection, so it is only sent once */
+    private static volatile boolean sSelectionRejected = false;
+
+    /* Only the columns needed to find the labels, read their counts, and query them directly */
+    private static final String[] LABEL_PROJECTION = {
+            GmailContract.Labels.CANONICAL_NAME,
+            GmailContract.Labels.NUM_UNREAD_CONVERSATIONS,
+            GmailContract.Labels.URI
+    };
+
+    /**
+     * Returns the number of unread mails in each of the given labels for an account. A single
+     * label whose URI was found by an earlier scan is read from its own row. Otherwise all labels
+     * are read in a single pass over a single labels cursor, which also finds their URIs
+     *
+     * @param context A context to query with
+     * @param account The account name to query
+     * @param labels  The canonical names of the labels to count
+     * @return The number of unread conversations in each label, in the same order as labels.
+     * Labels which don't exist have a count of zero. null if the provider couldn't be queried
+     */
+    private static int[] getUnreadMailCounts(Context context, String account, String[] labels) {
+
+        TraceCompat.beginSection("InboxChecker.getUnreadMailCounts");
+        try {
+            long queryStart = SystemClock.elapsedRealtime();
+            InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_QUERIES, 1);
+
+            /* Several labels are still cheaper in one IN query than one query per label */
+            int[] unread = null;
+            if (labels.length == 1) {
+                Uri labelUri = InboxCheckerLabelUriCache.get(context, account, labels[0]);
+                if (labelUri != null) {
+                    unread = queryLabels(context, labelUri, null, labels, null);
+                    if (unread == null || unread[0] == InboxCheckerBadge.UNKNOWN_COUNT) {
+                        /* The URI stopped resolving, so find the label again with a full scan */
+                        InboxCheckerLabelUriCache.invalidate(context, account);
+                        unread = null;
+                    }
+                }
+            }
+
+            if (unread == null) {
+                String[] uris = new String[labels.length];
+                unread = queryLabels(context, GmailContract.Labels.getLabelsUri(account),
+                        getLabelSelection(labels), labels, uris);
+                if (unread != null) {
+                    InboxCheckerLabelUriCache.put(context, account, labels, uris);
+                    for (int i = 0; i < unread.length; i++) {
+                        if (unread[i] == InboxCheckerBadge.UNKNOWN_COUNT) {
+                            unread[i] = 0;
+                        }
+                    }
+                } else {
+                    InboxCheckerMetrics.recordFailure(account);
+                }
+            }
+
+            InboxCheckerMetrics.record(InboxCheckerMetrics.HISTOGRAM_QUERY_MS,
+                    SystemClock.elapsedRealtime() - queryStart);
+            return unread;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * Query some label rows and read the unread counts of the given labels from them
+     *
+     * @param context   A context to query with
+     * @param uri       Either the labels URI of an account, or the direct URI of one label
+     * @param selection The selection criteria, with labels as the arguments, or null
+     * @param labels    The canonical names of the labels to count
+     * @param uris      Filled with the URI of each label, in the same order as labels, or null
+     * @return The number of unread conversations in each label, in the same order as labels.
+     * Labels which weren't found are UNKNOWN_COUNT. null if the provider couldn't be queried
+     */
+    private static int[] queryLabels(Context context, Uri uri, String selection, String[] labels,
+                                     String[] uris) {
+        if (sSelectionRejected) {
+            selection = null;
+        }
+        Cursor cursor;
+        try {
+            cursor = query(context, uri, selection, labels);
+        } catch (IllegalArgumentException | SQLException e) {
+            /* The provider doesn't understand the selection. Read every row instead, the scanner
+             * picks out the labels anyway, and don't send the selection again
+             */
+            sSelectionRejected = true;
+            try {
+                cursor = query(context, uri, null, labels);
+            } catch (IllegalArgumentException | SQLException retryException) {
+                cursor = null;
+            }
+        }
+        if (cursor == null) {
+            return null;
+        }
+
+        int[] unread = new int[labels.length];
+        Arrays.fill(unread, InboxCheckerBadge.UNKNOWN_COUNT);
+
+        int rows = 0;
+        try {
+            /* Look up the column indexes once, not once per row */
+            int nameColumn = cursor.getColumnIndex(GmailContract.Labels.CANONICAL_NAME);
+            int unreadColumn =
+                    cursor.getColumnIndex(GmailContract.Labels.NUM_UNREAD_CONVERSATIONS);
+            int uriColumn = cursor.getColumnIndex(GmailContract.Labels.URI);
+
+            if (nameColumn != -1 && unreadColumn != -1) {
+                /* Iterate over the cursor until every label is found. The provider may ignore the
+                 * selection, so the scanner checks the name of each row
+                 */
+                TraceCompat.beginSection("InboxChecker.scanCursor");
+                try {
+                    rows = InboxCheckerLabelScanner.scan(new InboxCheckerCursorLabelRows(cursor),
+                            nameColumn, unreadColumn, uriColumn, labels, unread, uris);
+                } finally {
+                    TraceCompat.endSection();
+                }
+            }
+        } finally {
             cursor.close();
         }
+
+        InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_ROWS, rows);
+        InboxCheckerMetrics.record(InboxCheckerMetrics.HISTOGRAM_ROWS, rows);
         return unread;
     }
+
+    /**
+     * Query label rows, treating a provider which won't let us read it as a failed query
+     *
+     * @param context   A context to query with
+     * @param uri       The content URI to read
+     * @param selection The selection criteria, with labels as the arguments, or null
+     * @param labels    The canonical names of the labels being counted
+     * @return A Cursor over the rows, or null if the provider couldn't be queried
+     */
+    private static Cursor query(Context context, Uri uri, String selection, String[] labels) {
+        try {
+            return context.getContentResolver().query(
+                    uri,                                    /* The content URI to read */
+                    LABEL_PROJECTION,                       /* The columns to return */
+                    selection,                              /* Selection criteria */
+                    (selection == null) ? null : labels,    /* Selection criteria */
+                    null);                                  /* The sort order */
+        } catch (SecurityException e) {
+            /* The permission was revoked, or Gmail no longer exports the provider */
+            return null;
+        }
+    }
+
+    /**
+     * @param labels The canonical names of the labels to select
+     * @return A selection which asks the provider for just the rows of the given labels
+     */
+    private static String getLabelSelection(String[] labels) {
+        StringBuilder selection = new StringBuilder(GmailContract.Labels.CANONICAL_NAME)
+                .append(" IN (");
+        for (int i = 0; i < labels.length; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        return selection.append(')').toString();
+    }
 }
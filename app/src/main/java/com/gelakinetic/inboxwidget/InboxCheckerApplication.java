@@ -0,0 +1,62 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.StrictMode;
+
+public class InboxCheckerApplication extends Application {
+
+    /**
+     * Called when the process starts, before any receiver or Activity. The unread count cache
+     * gets its time to live from resources, and the saved metrics are read back in. The
+     * diagnostics flavor turns on StrictMode here, so disk access and IPCs on the main thread are
+     * logged. IPCs are flagged with StrictMode.noteSlowCall() where they happen
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        InboxCheckerUnreadCache.setTtl(getResources().getInteger(R.integer.unread_cache_ttl_ms));
+
+        /* Pick the metrics up where the last process left off, before any refresh saves them */
+        final Context appContext = getApplicationContext();
+        InboxCheckerRefreshCoordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                InboxCheckerMetrics.restore(appContext);
+            }
+        });
+        if (BuildConfig.STRICT_MODE) {
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .detectCustomSlowCalls()
+                    .penaltyLog()
+                    .build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+    }
+}
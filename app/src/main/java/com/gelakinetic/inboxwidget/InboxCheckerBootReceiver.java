@@ -22,11 +22,19 @@ package com.gelakinetic.inboxwidget;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.StrictMode;
+import android.support.v4.os.TraceCompat;
 
 public class InboxCheckerBootReceiver extends BroadcastReceiver {
 
+    /* Let the boot rush die down before querying Gmail */
+    private static final long BOOT_REFRESH_DELAY_MS = 1000 * 90;
+
     /**
-     * Called when the device boots, this allows the app to set the polling alarm
+     * Called when the device boots, this allows the app to set the polling alarm. State left
+     * behind by deleted widgets is dropped first. The widgets are rendered right away with their
+     * counts from before boot, marked as stale, and a live refresh is scheduled for once the boot
+     * has settled
      *
      * @param context A Context to get preferences and set the alarm with
      * @param intent  The intent that called this receiver,
@@ -35,7 +43,17 @@ public class InboxCheckerBootReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         if (intent.getAction().equals(Intent.ACTION_BOOT_COMPLETED)) {
-            InboxCheckerPollingAlarm.setAlarm(context);
+            TraceCompat.beginSection("InboxChecker.boot");
+            try {
+                /* Setting the alarms and registering observers are IPCs on the main thread */
+                StrictMode.noteSlowCall("InboxChecker.boot");
+                InboxCheckerWidgetLifecycle.trimToLiveWidgets(context);
+                InboxCheckerAppWidgetProvider.renderSnapshot(context, goAsync());
+                InboxCheckerPollingAlarm.setAlarm(context);
+                InboxCheckerPollingAlarm.scheduleRefresh(context, BOOT_REFRESH_DELAY_MS);
+            } finally {
+                TraceCompat.endSection();
+            }
         }
     }
 }
\ No newline at end of file
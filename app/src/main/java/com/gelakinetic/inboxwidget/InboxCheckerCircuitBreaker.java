@@ -0,0 +1,322 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.google.android.gm.contentprovider.GmailContract;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stops querying an account's labels after repeated failures, like when Gmail is missing or
+ * disabled, or the permission to read its provider was revoked. While open, a single probe query
+ * is let through after a delay which doubles after every failed probe. State is kept in
+ * SharedPreferences, so a new process waits out the backoff too. After a reboot open breakers
+ * probe right away, since elapsedRealtime() started over and the reboot may have fixed the
+ * provider
+ */
+class InboxCheckerCircuitBreaker {
+
+    private static final String BREAKER_PREFS = "CircuitBreakers";
+    /* Each breaker is stored under this prefix and its account name */
+    private static final String KEY_BREAKER_PREFIX = "breaker:";
+    /* The wall clock time of the boot the breakers were saved in */
+    private static final String KEY_BOOT_TIME = "boot_time";
+
+    /* How far the computed boot time may drift, as the wall clock is adjusted, and still be the
+     * same boot
+     */
+    private static final long BOOT_TIME_SLOP_MS = 1000 * 60;
+
+    /* Failures in a row before queries stop, unless the provider is known to be unreadable */
+    private static final int FAILURE_THRESHOLD = 3;
+
+    /* How long to wait before the first probe, and the longest wait between probes */
+    private static final long MIN_BACKOFF_MS = 1000 * 60;
+    private static final long MAX_BACKOFF_MS = 1000 * 60 * 60;
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_HALF_OPEN = 2;
+
+    /**
+     * The breaker of one account
+     */
+    private static class Breaker {
+        int state = STATE_CLOSED;
+        int failures = 0;
+        long backoffMs = MIN_BACKOFF_MS;
+        long nextProbeTime = 0;
+    }
+
+    /* The breaker of every account which failed since its last success. Null until loaded */
+    private static HashMap<String, Breaker> sBreakers = null;
+
+    /**
+     * Check if an account may be queried. If the breaker is open and the backoff has elapsed, this
+     * lets one probe query through
+     *
+     * @param context A Context to read preferences with
+     * @param account The account name about to be queried
+     * @return true to query the account, false to skip it
+     */
+    static synchronized boolean allowQuery(Context context, String account) {
+        load(context);
+        Breaker breaker = sBreakers.get(account);
+        if (breaker == null || breaker.state == STATE_CLOSED) {
+            return true;
+        }
+        if (breaker.state == STATE_OPEN &&
+                SystemClock.elapsedRealtime() >= breaker.nextProbeTime) {
+            /* Not persisted. A process which dies during the probe loads the breaker as open
+             * with the probe due, so it probes again
+             */
+            breaker.state = STATE_HALF_OPEN;
+            return true;
+        }
+        /* Either waiting out the backoff, or a probe is already in flight */
+        return false;
+    }
+
+    /**
+     * Record a successful query, which closes the breaker
+     *
+     * @param context A Context to read and write preferences with
+     * @param account The account name which was queried
+     */
+    static synchronized void onSuccess(Context context, String account) {
+        load(context);
+        if (sBreakers.remove(account) != null) {
+            getPreferences(context).edit().remove(KEY_BREAKER_PREFIX + account).apply();
+        }
+    }
+
+    /**
+     * Record a failed query. The breaker opens after FAILURE_THRESHOLD failures in a row, or on
+     * the first one if Gmail's provider can't be read at all. A failed probe doubles the backoff
+     *
+     * @param context A Context to check the Gmail provider and write preferences with
+     * @param account The account name which was queried
+     */
+    static void onFailure(Context context, String account) {
+        boolean firstFailure;
+        synchronized (InboxCheckerCircuitBreaker.class) {
+            load(context);
+            firstFailure = !sBreakers.containsKey(account);
+        }
+
+        /* This is a package manager round trip, so only check once per run of failures */
+        boolean unreadable = firstFailure && !GmailContract.canReadLabels(context);
+
+        synchronized (InboxCheckerCircuitBreaker.class) {
+            Breaker breaker = sBreakers.get(account);
+            if (breaker == null) {
+                breaker = new Breaker();
+                sBreakers.put(account, breaker);
+            }
+            breaker.failures++;
+
+            if (breaker.state == STATE_HALF_OPEN) {
+                /* The probe failed, wait longer before the next one */
+                breaker.backoffMs = Math.min(breaker.backoffMs * 2, MAX_BACKOFF_MS);
+                open(breaker);
+            } else if (breaker.state == STATE_CLOSED &&
+                    (unreadable || breaker.failures >= FAILURE_THRESHOLD)) {
+                open(breaker);
+            }
+            save(context, account, breaker);
+        }
+    }
+
+    /**
+     * @param context A Context to read preferences with
+     * @param account The account name to check
+     * @return true if the account's queries are failing and stopped, false otherwise
+     */
+    static synchronized boolean isOpen(Context context, String account) {
+        load(context);
+        Breaker breaker = sBreakers.get(account);
+        return breaker != null && breaker.state != STATE_CLOSED;
+    }
+
+    /**
+     * Find out how long until polling could query anything. While every account the widgets show
+     * has an open breaker, a poll before the first probe is due would skip every query, so the
+     * polling interval is stretched to at least this
+     *
+     * @param context A Context to read preferences and the widget registry with
+     * @return The time until the first probe is due in milliseconds, or 0 if any account may be
+     * queried now
+     */
+    static synchronized long getProbeDelayMs(Context context) {
+        load(context);
+        if (sBreakers.isEmpty()) {
+            return 0;
+        }
+
+        HashSet<String> accounts = new HashSet<>();
+        SparseArray<InboxCheckerWidgetConfig> configs = InboxCheckerWidgetRegistry.getAll(context);
+        for (int i = 0; i < configs.size(); i++) {
+            Collections.addAll(accounts, configs.valueAt(i).accounts);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long delay = Long.MAX_VALUE;
+        for (String account : accounts) {
+            Breaker breaker = sBreakers.get(account);
+            if (breaker == null || breaker.state != STATE_OPEN) {
+                return 0;
+            }
+            delay = Math.min(delay, Math.max(0, breaker.nextProbeTime - now));
+        }
+        return accounts.isEmpty() ? 0 : delay;
+    }
+
+    /**
+     * Close every breaker, so the next refresh queries every account. This is called when a
+     * widget is configured, since the user may have fixed whatever was broken
+     *
+     * @param context A Context to write preferences with
+     */
+    static synchronized void reset(Context context) {
+        load(context);
+        sBreakers.clear();
+        getPreferences(context).edit().clear().apply();
+    }
+
+    /**
+     * Open a breaker and schedule its next probe
+     *
+     * @param breaker The breaker to open
+     */
+    private static void open(Breaker breaker) {
+        breaker.state = STATE_OPEN;
+        breaker.nextProbeTime = SystemClock.elapsedRealtime() + breaker.backoffMs;
+        InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_BREAKER_OPENS, 1);
+    }
+
+    /**
+     * Drop the breakers of accounts no widget shows any more
+     *
+     * @param context  A Context to write preferences with
+     * @param accounts The account names which still have widgets
+     */
+    static synchronized void retainAccounts(Context context, Set<String> accounts) {
+        load(context);
+        SharedPreferences.Editor editor = null;
+        Iterator<String> iterator = sBreakers.keySet().iterator();
+        while (iterator.hasNext()) {
+            String account = iterator.next();
+            if (!accounts.contains(account)) {
+                if (editor == null) {
+                    editor = getPreferences(context).edit();
+                }
+                editor.remove(KEY_BREAKER_PREFIX + account);
+                iterator.remove();
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Load the persisted breakers into memory, once per process. A breaker which was probing is
+     * loaded as open with the probe due. If the device rebooted since the breakers were saved,
+     * every open breaker's probe is due right away
+     *
+     * @param context A Context to read preferences with
+     */
+    private static void load(Context context) {
+        if (sBreakers != null) {
+            return;
+        }
+        sBreakers = new HashMap<>();
+        SharedPreferences preferences = getPreferences(context);
+        boolean rebooted = Math.abs(preferences.getLong(KEY_BOOT_TIME, 0) - getBootTime()) >
+                BOOT_TIME_SLOP_MS;
+
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(KEY_BREAKER_PREFIX) ||
+                    !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            String[] fields = ((String) entry.getValue()).split(",");
+            if (fields.length != 4) {
+                continue;
+            }
+            Breaker breaker = new Breaker();
+            try {
+                breaker.state = Integer.parseInt(fields[0]);
+                breaker.failures = Integer.parseInt(fields[1]);
+                breaker.backoffMs = Long.parseLong(fields[2]);
+                breaker.nextProbeTime = Long.parseLong(fields[3]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (breaker.state == STATE_HALF_OPEN) {
+                breaker.state = STATE_OPEN;
+            }
+            if (rebooted) {
+                breaker.nextProbeTime = 0;
+            }
+            sBreakers.put(entry.getKey().substring(KEY_BREAKER_PREFIX.length()), breaker);
+        }
+    }
+
+    /**
+     * Persist one account's breaker, along with the boot it was saved in
+     *
+     * @param context A Context to write preferences with
+     * @param account The account name whose breaker changed
+     * @param breaker The account's breaker
+     */
+    private static void save(Context context, String account, Breaker breaker) {
+        getPreferences(context).edit()
+                .putString(KEY_BREAKER_PREFIX + account, breaker.state + "," + breaker.failures +
+                        "," + breaker.backoffMs + "," + breaker.nextProbeTime)
+                .putLong(KEY_BOOT_TIME, getBootTime())
+                .apply();
+    }
+
+    /**
+     * @return The wall clock time the device booted, which identifies the current boot
+     */
+    private static long getBootTime() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @param context A Context to get preferences with
+     * @return The SharedPreferences the breakers are persisted in
+     */
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(BREAKER_PREFS, Context.MODE_PRIVATE);
+    }
+}
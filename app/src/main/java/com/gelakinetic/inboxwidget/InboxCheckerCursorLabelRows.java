@@ -0,0 +1,54 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.database.Cursor;
+
+import com.gelakinetic.inboxwidget.core.InboxCheckerLabelRows;
+
+/**
+ * Lets the label scanner read rows from a labels Cursor
+ */
+class InboxCheckerCursorLabelRows implements InboxCheckerLabelRows {
+
+    private final Cursor mCursor;
+
+    /**
+     * @param cursor The labels Cursor to read. It is not closed by this class
+     */
+    InboxCheckerCursorLabelRows(Cursor cursor) {
+        mCursor = cursor;
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return mCursor.moveToNext();
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCursor.getInt(column);
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.appwidget.AppWidgetProviderInfo;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.widget.RemoteViews;
+
+import com.google.android.gm.contentprovider.GmailContract;
+
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * A resizable widget which lists every label of an account along with its unread count. The rows
+ * are served by InboxCheckerLabelListService, straight from a labels cursor. This provider only
+ * sets the list up, and tells the host to reload it when a refresh finds a row changed. A refresh
+ * keeps one hash per row and nothing else, so memory doesn't grow with the labels' contents
+ */
+public class InboxCheckerLabelListProvider extends AppWidgetProvider {
+
+    /* Everything a row shows, in the order the rows are shown */
+    private static final String[] LIST_PROJECTION = {
+            GmailContract.Labels.CANONICAL_NAME,
+            GmailContract.Labels.NAME,
+            GmailContract.Labels.NUM_UNREAD_CONVERSATIONS,
+            GmailContract.Labels.TEXT_COLOR,
+            GmailContract.Labels.BACKGROUND_COLOR
+    };
+
+    /* Column indexes in LIST_PROJECTION */
+    static final int COLUMN_CANONICAL_NAME = 0;
+    static final int COLUMN_NAME = 1;
+    static final int COLUMN_UNREAD = 2;
+    static final int COLUMN_TEXT_COLOR = 3;
+    static final int COLUMN_BACKGROUND_COLOR = 4;
+
+    /* Prefixes a list's fingerprint in the render state, so it can't look like a badge */
+    private static final String STATE_PREFIX = "list:";
+
+    /* The row hashes last read for each account with a list widget, to diff the next read with */
+    private static final HashMap<String, RowHashes> sRowHashes = new HashMap<>();
+
+    /**
+     * One hash of every row of an account's labels, in the order the rows are shown. Instances
+     * are immutable, so they can be handed from the query threads to the refresh thread
+     */
+    static class RowHashes {
+        final long[] hashes;
+        /* A hash of every row, kept in the render state to see if the list changed */
+        final long fingerprint;
+
+        /**
+         * Hash every row of a labels cursor. Only the current row is read at a time, so the
+         * cursor pages the rows in through its window
+         *
+         * @param cursor A cursor over the LIST_PROJECTION columns, positioned before the first row
+         */
+        RowHashes(Cursor cursor) {
+            hashes = new long[cursor.getCount()];
+            long fingerprint = 17;
+            for (int i = 0; i < hashes.length && cursor.moveToNext(); i++) {
+                String canonicalName = cursor.getString(COLUMN_CANONICAL_NAME);
+                String name = cursor.getString(COLUMN_NAME);
+                long hash = 17;
+                hash = 31 * hash + (canonicalName == null ? 0 : canonicalName.hashCode());
+                hash = 31 * hash + (name == null ? 0 : name.hashCode());
+                hash = 31 * hash + cursor.getInt(COLUMN_UNREAD);
+                hash = 31 * hash + cursor.getInt(COLUMN_TEXT_COLOR);
+                hash = 31 * hash + cursor.getInt(COLUMN_BACKGROUND_COLOR);
+                hashes[i] = hash;
+                fingerprint = 31 * fingerprint + hash;
+            }
+            this.fingerprint = 31 * fingerprint + hashes.length;
+        }
+
+        /**
+         * @param other The hashes of an earlier read, or null
+         * @return The number of rows which differ from the earlier read, counting rows only one of
+         * them has, or every row if there was no earlier read
+         */
+        int countChangedRows(RowHashes other) {
+            if (other == null) {
+                return hashes.length;
+            }
+            int shared = Math.min(hashes.length, other.hashes.length);
+            int changed = Math.abs(hashes.length - other.hashes.length);
+            for (int i = 0; i < shared; i++) {
+                if (hashes[i] != other.hashes[i]) {
+                    changed++;
+                }
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Called by the system when list widgets are added, or when their update period elapses. The
+     * lists are set up again, since the host may have been reset
+     *
+     * @param context          The Context in which this receiver is running.
+     * @param appWidgetManager A AppWidgetManager object you can call
+     *                         updateAppWidget(ComponentName, RemoteViews) on.
+     * @param appWidgetIds     The appWidgetIds for which an update is needed.
+     */
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        InboxCheckerAppWidgetProvider.refresh(context, appWidgetIds, true, goAsync());
+    }
+
+    /**
+     * Called by the system when list widgets are deleted. Everything kept for them is dropped
+     *
+     * @param context      The Context in which this receiver is running.
+     * @param appWidgetIds The appWidgetIds that have been deleted from their host.
+     */
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        InboxCheckerWidgetLifecycle.onDeleted(context, appWidgetIds, goAsync());
+    }
+
+    /**
+     * Called by the system when the last list widget is deleted. Polling stops if no widget of
+     * either kind is left
+     *
+     * @param context The Context in which this receiver is running.
+     */
+    @Override
+    public void onDisabled(Context context) {
+        InboxCheckerPollingAlarm.onWidgetsRemoved(context);
+    }
+
+    /**
+     * Called by the system when list widgets are restored from a backup with new IDs
+     *
+     * @param context      The Context in which this receiver is running.
+     * @param oldWidgetIds The appWidgetIds the widgets had when they were backed up.
+     * @param newWidgetIds The appWidgetIds the widgets have now, in the same order.
+     */
+    @Override
+    public void onRestored(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
+        InboxCheckerWidgetLifecycle.onRestored(context, oldWidgetIds, newWidgetIds, goAsync());
+    }
+
+    /**
+     * @param appWidgetManager The AppWidgetManager to look unconfigured widgets up with
+     * @param appWidgetId      The widget to check
+     * @param config           The widget's configuration, or null if it isn't configured yet
+     * @return true if the widget is a label list, false if it's a badge
+     */
+    static boolean isLabelList(AppWidgetManager appWidgetManager, int appWidgetId,
+                               InboxCheckerWidgetConfig config) {
+        if (config != null) {
+            return config.isLabelList();
+        }
+        /* Not configured yet, so ask which provider it belongs to. This is rare */
+        AppWidgetProviderInfo info = appWidgetManager.getAppWidgetInfo(appWidgetId);
+        return info != null && info.provider != null &&
+                InboxCheckerLabelListProvider.class.getName().equals(
+                        info.provider.getClassName());
+    }
+
+    /**
+     * Reload a list widget if its account's labels changed. This is called from the refresh
+     * cycle, once the account's rows were hashed with readRowHashes()
+     *
+     * @param context          A Context to render with
+     * @param appWidgetManager The AppWidgetManager to update widgets with
+     * @param appWidgetId      The list widget to refresh
+     * @param config           The widget's configuration, or null if it isn't configured yet
+     * @param rowHashes        The row hashes just read for the widget's account, or null if
+     *                         they couldn't be read
+     * @return true if the list changed, false otherwise
+     */
+    static boolean updateList(Context context, AppWidgetManager appWidgetManager,
+                              int appWidgetId, InboxCheckerWidgetConfig config,
+                              RowHashes rowHashes) {
+        String state = InboxCheckerRenderState.STATE_NO_ACCOUNT;
+        if (config != null) {
+            if (rowHashes == null) {
+                /* The query failed, timed out, or was blocked, leave the list as it is */
+                return false;
+            }
+            state = STATE_PREFIX + Long.toHexString(rowHashes.fingerprint);
+        }
+
+        int render = InboxCheckerRenderState.update(context, appWidgetId, state);
+        if (render == InboxCheckerRenderState.RENDER_NONE) {
+            /* No row changed, so don't make the host reload anything */
+            InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_UPDATES_SKIPPED, 1);
+            return false;
+        }
+
+        if (render == InboxCheckerRenderState.RENDER_FULL) {
+            appWidgetManager.updateAppWidget(appWidgetId, buildViews(context, appWidgetId));
+        }
+        /* Have the host reload the rows. The collection API can't reload single rows, but with
+         * stable IDs the host keeps the views of rows which didn't move
+         */
+        appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetId, R.id.labelList);
+        InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_UPDATES_APPLIED, 1);
+        return config != null;
+    }
+
+    /**
+     * Build the views which connect a list widget to InboxCheckerLabelListService
+     *
+     * @param context     A Context to build the views with
+     * @param appWidgetId The list widget being rendered
+     * @return The views to update the widget with
+     */
+    private static RemoteViews buildViews(Context context, int appWidgetId) {
+        Intent intent = new Intent(context, InboxCheckerLabelListService.class);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+        /* Make the intent unique per widget, or the host would share one factory between them */
+        intent.setData(Uri.parse(intent.toUri(Intent.URI_INTENT_SCHEME)));
+
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.label_list_widget);
+        views.setRemoteAdapter(R.id.labelList, intent);
+        views.setEmptyView(R.id.labelList, R.id.emptyView);
+        /* Clicking a row opens the mail app, just like clicking the badge widget */
+        views.setPendingIntentTemplate(R.id.labelList,
+                InboxCheckerLaunchTarget.getClickIntent(context, appWidgetId));
+        return views;
+    }
+
+    /**
+     * Hash every label row of an account, and count how many rows changed since the last read.
+     * This blocks, so the refresh cycle runs it on its query threads
+     *
+     * @param context A Context to query with
+     * @param account The account name to query
+     * @return The account's row hashes, or null if the query failed
+     */
+    static RowHashes readRowHashes(Context context, String account) {
+        long queryStart = SystemClock.elapsedRealtime();
+        InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_QUERIES, 1);
+
+        Cursor cursor = query(context, account);
+        if (cursor == null) {
+            InboxCheckerMetrics.recordFailure(account);
+            return null;
+        }
+
+        RowHashes rowHashes;
+        try {
+            rowHashes = new RowHashes(cursor);
+        } finally {
+            cursor.close();
+        }
+        RowHashes previous;
+        synchronized (sRowHashes) {
+            previous = sRowHashes.put(account, rowHashes);
+        }
+
+        int rows = rowHashes.hashes.length;
+        InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_ROWS, rows);
+        InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_ROWS_CHANGED,
+                rowHashes.countChangedRows(previous));
+        InboxCheckerMetrics.record(InboxCheckerMetrics.HISTOGRAM_ROWS, rows);
+        InboxCheckerMetrics.record(InboxCheckerMetrics.HISTOGRAM_QUERY_MS,
+                SystemClock.elapsedRealtime() - queryStart);
+        return rowHashes;
+    }
+
+    /**
+     * Drop the row hashes of every account not in the given set
+     *
+     * @param accounts The account names to keep row hashes for
+     */
+    static void retainAccounts(Set<String> accounts) {
+        synchronized (sRowHashes) {
+            sRowHashes.keySet().retainAll(accounts);
+        }
+    }
+
+    /**
+     * @param context A Context to query with
+     * @param account The account name to query
+     * @return A Cursor over every label of the account, with the LIST_PROJECTION columns, or null
+     * if the query failed
+     */
+    static Cursor query(Context context, String account) {
+        try {
+            return context.getContentResolver().query(
+                    GmailContract.Labels.getLabelsUri(account), LIST_PROJECTION, null, null, null);
+        } catch (SecurityException e) {
+            /* The permission was revoked */
+            return null;
+        }
+    }
+}
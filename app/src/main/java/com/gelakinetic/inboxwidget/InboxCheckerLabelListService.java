@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.widget.RemoteViews;
+import android.widget.RemoteViewsService;
+
+/**
+ * Serves the rows of InboxCheckerLabelListProvider's widgets
+ */
+public class InboxCheckerLabelListService extends RemoteViewsService {
+
+    /**
+     * @param intent The intent the list widget was set up with, which holds its appWidgetId
+     * @return A factory for the widget's rows
+     */
+    @Override
+    public RemoteViewsFactory onGetViewFactory(Intent intent) {
+        return new LabelListFactory(getApplicationContext(),
+                intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID,
+                        AppWidgetManager.INVALID_APPWIDGET_ID));
+    }
+
+    /**
+     * Builds rows straight from a labels cursor, which pages them in through its window as the
+     * host asks for them, so memory doesn't grow with the number of labels. The cursor is opened
+     * when the host reloads the list, which only happens after a refresh found a row changed. The
+     * host calls these methods on binder threads, so access to the cursor is synchronized
+     */
+    private static class LabelListFactory implements RemoteViewsFactory {
+
+        private final Context mContext;
+        private final int mAppWidgetId;
+        private Cursor mCursor = null;
+
+        LabelListFactory(Context context, int appWidgetId) {
+            mContext = context;
+            mAppWidgetId = appWidgetId;
+        }
+
+        @Override
+        public void onCreate() {
+            /* The cursor is opened in onDataSetChanged(), which the host calls next */
+        }
+
+        /**
+         * Swap in a fresh cursor. The host calls this when the list is first shown, and after
+         * notifyAppWidgetViewDataChanged()
+         */
+        @Override
+        public synchronized void onDataSetChanged() {
+            closeCursor();
+            InboxCheckerWidgetConfig config =
+                    InboxCheckerWidgetRegistry.get(mContext, mAppWidgetId);
+            if (config != null) {
+                mCursor = InboxCheckerLabelListProvider.query(mContext, config.account);
+            }
+        }
+
+        @Override
+        public synchronized void onDestroy() {
+            closeCursor();
+        }
+
+        @Override
+        public synchronized int getCount() {
+            return mCursor == null ? 0 : mCursor.getCount();
+        }
+
+        /**
+         * @param position The row to build
+         * @return The row, showing the label's name and unread count in the label's colors
+         */
+        @Override
+        public synchronized RemoteViews getViewAt(int position) {
+            RemoteViews row = new RemoteViews(mContext.getPackageName(), R.layout.label_list_row);
+            if (mCursor == null || !mCursor.moveToPosition(position)) {
+                return row;
+            }
+
+            int textColor = mCursor.getInt(InboxCheckerLabelListProvider.COLUMN_TEXT_COLOR);
+            row.setTextViewText(R.id.labelName,
+                    mCursor.getString(InboxCheckerLabelListProvider.COLUMN_NAME));
+            row.setTextColor(R.id.labelName, textColor);
+            row.setTextViewText(R.id.labelCount, Integer.toString(
+                    mCursor.getInt(InboxCheckerLabelListProvider.COLUMN_UNREAD)));
+            row.setTextColor(R.id.labelCount, textColor);
+            row.setInt(R.id.labelRow, "setBackgroundColor",
+                    mCursor.getInt(InboxCheckerLabelListProvider.COLUMN_BACKGROUND_COLOR));
+
+            /* Fill in the click template set by InboxCheckerLabelListProvider */
+            row.setOnClickFillInIntent(R.id.labelRow, new Intent());
+            return row;
+        }
+
+        @Override
+        public RemoteViews getLoadingView() {
+            /* Use the host's default */
+            return null;
+        }
+
+        @Override
+        public int getViewTypeCount() {
+            return 1;
+        }
+
+        /**
+         * @param position The row to identify
+         * @return An ID which follows the label as rows move, so the host can keep its views
+         */
+        @Override
+        public synchronized long getItemId(int position) {
+            if (mCursor == null || !mCursor.moveToPosition(position)) {
+                return position;
+            }
+            String canonicalName =
+                    mCursor.getString(InboxCheckerLabelListProvider.COLUMN_CANONICAL_NAME);
+            return canonicalName == null ? position : canonicalName.hashCode();
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        /**
+         * Close the cursor, if one is open
+         */
+        private void closeCursor() {
+            if (mCursor != null) {
+                mCursor.close();
+                mCursor = null;
+            }
+        }
+    }
+}
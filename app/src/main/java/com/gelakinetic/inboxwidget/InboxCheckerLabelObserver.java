@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import com.google.android.gm.contentprovider.GmailContract;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+public class InboxCheckerLabelObserver extends ContentObserver {
+
+    /* One observer per observed account, keyed by account name */
+    private static final HashMap<String, InboxCheckerLabelObserver> sObservers = new HashMap<>();
+
+    /* The registry generation the observers were last registered for */
+    private static int sRegisteredGeneration = -1;
+    /* Whether every account with a widget got an observer at the last registration */
+    private static boolean sAllObserved = false;
+
+    private final Context mContext;
+    private final String mAccount;
+
+    /**
+     * Create an observer which refreshes the widgets when an account's labels change
+     *
+     * @param context An application Context to refresh the widgets with
+     * @param account The account name being observed
+     */
+    private InboxCheckerLabelObserver(Context context, String account) {
+        super(new Handler(Looper.getMainLooper()));
+        mContext = context;
+        mAccount = account;
+    }
+
+    /**
+     * Called by the ContentResolver when the Gmail provider reports a change to an observed
+     * labels URI. Refresh the widgets so the new count shows up right away, unless they are in
+     * their quiet hours
+     *
+     * @param selfChange True if this is a self-change notification
+     */
+    @Override
+    public void onChange(boolean selfChange) {
+        /* The cached count is known to be stale now */
+        InboxCheckerUnreadCache.invalidate(mAccount);
+        /* Only this account's widgets can have changed. Quiet ones catch up when polling resumes */
+        int[] appWidgetIds = InboxCheckerPowerPolicy.removeQuietWidgets(mContext,
+                InboxCheckerWidgetRegistry.getIds(mContext, mAccount));
+        if (appWidgetIds.length > 0) {
+            InboxCheckerAppWidgetProvider.refresh(mContext, appWidgetIds, false, null);
+        }
+    }
+
+    /**
+     * Register an observer on the labels URI of every account with a widget, and unregister
+     * observers for accounts which no longer have one. This is called whenever the polling alarm
+     * is set, so observers are restored if the process was killed
+     *
+     * @param context A Context to read preferences and register observers with
+     * @return true if every account with a widget is being observed, false otherwise
+     */
+    static synchronized boolean registerObservers(Context context) {
+        Context appContext = context.getApplicationContext();
+
+        /* If no widget changed since the last registration, there's nothing to do */
+        int generation = InboxCheckerWidgetRegistry.getGeneration();
+        if (generation == sRegisteredGeneration) {
+            return sAllObserved;
+        }
+
+        /* Gather the accounts which currently have widgets */
+        HashSet<String> accounts = new HashSet<>();
+        SparseArray<InboxCheckerWidgetConfig> configs =
+                InboxCheckerWidgetRegistry.getAll(appContext);
+        for (int i = 0; i < configs.size(); i++) {
+            Collections.addAll(accounts, configs.valueAt(i).accounts);
+        }
+
+        /* Stop observing accounts without widgets */
+        Iterator<Map.Entry<String, InboxCheckerLabelObserver>> iterator =
+                sObservers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, InboxCheckerLabelObserver> entry = iterator.next();
+            if (!accounts.contains(entry.getKey())) {
+                appContext.getContentResolver().unregisterContentObserver(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        /* Start observing new accounts */
+        for (String account : accounts) {
+            if (!sObservers.containsKey(account)) {
+                InboxCheckerLabelObserver observer =
+                        new InboxCheckerLabelObserver(appContext, account);
+                try {
+                    appContext.getContentResolver().registerContentObserver(
+                            GmailContract.Labels.getLabelsUri(account), true, observer);
+                    sObservers.put(account, observer);
+                } catch (SecurityException e) {
+                    /* The provider won't let us observe, polling will have to do */
+                }
+            }
+        }
+
+        sRegisteredGeneration = generation;
+        sAllObserved = !accounts.isEmpty() && sObservers.size() == accounts.size();
+        return sAllObserved;
+    }
+
+    /**
+     * Unregister all observers. This is called when there are no widgets left
+     *
+     * @param context A Context to unregister observers with
+     */
+    static synchronized void unregisterObservers(Context context) {
+        Context appContext = context.getApplicationContext();
+        for (InboxCheckerLabelObserver observer : sObservers.values()) {
+            appContext.getContentResolver().unregisterContentObserver(observer);
+        }
+        sObservers.clear();
+        sRegisteredGeneration = -1;
+        sAllObserved = false;
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the direct URI of each label found by a scan of an account's labels, so a refresh of
+ * a single label can query just that label's row instead of the whole list. Entries are kept until
+ * a direct query stops resolving, the account goes away, accounts change, or Gmail is updated.
+ * They're kept in SharedPreferences too, since the process is usually killed between polls and
+ * a cache which only lived in memory would rarely be warm
+ */
+class InboxCheckerLabelUriCache {
+
+    private static final String URI_PREFS = "LabelUris";
+    /* Each URI is stored under this prefix, the encoded account name, a separator, and the
+     * encoded canonical name
+     */
+    private static final String KEY_URI_PREFIX = "uri:";
+    private static final String KEY_SEPARATOR = "/";
+
+    /* Label URIs keyed by account name, then canonical name. Null until loaded */
+    private static HashMap<String, HashMap<String, Uri>> sUris = null;
+
+    /**
+     * @param context A Context to read preferences with
+     * @param account The account name to look up
+     * @param label   The canonical name of the label to look up
+     * @return The label's direct URI, or null if it hasn't been discovered
+     */
+    static synchronized Uri get(Context context, String account, String label) {
+        load(context);
+        HashMap<String, Uri> uris = sUris.get(account);
+        return (uris == null) ? null : uris.get(label);
+    }
+
+    /**
+     * Remember the URIs read by a scan of an account's labels. Only URIs which changed are
+     * written
+     *
+     * @param context A Context to read and write preferences with
+     * @param account The account name the labels belong to
+     * @param labels  The canonical names of the labels which were scanned
+     * @param uris    The URI of each label, in the same order as labels. Null entries are labels
+     *                which weren't found, or rows without a URI
+     */
+    static synchronized void put(Context context, String account, String[] labels,
+                                 String[] uris) {
+        load(context);
+        HashMap<String, Uri> accountUris = sUris.get(account);
+        SharedPreferences.Editor editor = null;
+        for (int i = 0; i < labels.length; i++) {
+            if (uris[i] == null) {
+                continue;
+            }
+            if (accountUris == null) {
+                accountUris = new HashMap<>();
+                sUris.put(account, accountUris);
+            }
+            Uri uri = accountUris.get(labels[i]);
+            if (uri != null && uri.toString().equals(uris[i])) {
+                continue;
+            }
+            accountUris.put(labels[i], Uri.parse(uris[i]));
+            if (editor == null) {
+                editor = getPreferences(context).edit();
+            }
+            editor.putString(getKey(account, labels[i]), uris[i]);
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Forget the URIs of an account's labels, so the next refresh scans the whole list again
+     *
+     * @param context A Context to read and write preferences with
+     * @param account The account name to invalidate
+     */
+    static synchronized void invalidate(Context context, String account) {
+        load(context);
+        HashMap<String, Uri> uris = sUris.remove(account);
+        if (uris == null) {
+            return;
+        }
+        SharedPreferences.Editor editor = getPreferences(context).edit();
+        for (String label : uris.keySet()) {
+            editor.remove(getKey(account, label));
+        }
+        editor.apply();
+    }
+
+    /**
+     * Forget the URIs of every account's labels. This is called when accounts change, since a
+     * re-added account may have new label URIs, and when Gmail is updated or removed
+     *
+     * @param context A Context to write preferences with
+     */
+    static synchronized void invalidateAll(Context context) {
+        sUris = new HashMap<>();
+        getPreferences(context).edit().clear().apply();
+    }
+
+    /**
+     * Drop the label URIs of accounts no widget shows any more
+     *
+     * @param context  A Context to read and write preferences with
+     * @param accounts The account names which still have widgets
+     */
+    static synchronized void retainAccounts(Context context, Set<String> accounts) {
+        load(context);
+        sUris.keySet().retainAll(accounts);
+
+        /* Go by what's stored, which may include accounts this process never loaded */
+        SharedPreferences preferences = getPreferences(context);
+        SharedPreferences.Editor editor = null;
+        for (String key : preferences.getAll().keySet()) {
+            String account = getAccount(key);
+            if (account != null && !accounts.contains(account)) {
+                if (editor == null) {
+                    editor = preferences.edit();
+                }
+                editor.remove(key);
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Load the persisted URIs into memory, once per process
+     *
+     * @param context A Context to read preferences with
+     */
+    private static void load(Context context) {
+        if (sUris != null) {
+            return;
+        }
+        sUris = new HashMap<>();
+        for (Map.Entry<String, ?> entry : getPreferences(context).getAll().entrySet()) {
+            String account = getAccount(entry.getKey());
+            if (account == null || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            String label = Uri.decode(entry.getKey().substring(
+                    entry.getKey().indexOf(KEY_SEPARATOR) + KEY_SEPARATOR.length()));
+            HashMap<String, Uri> accountUris = sUris.get(account);
+            if (accountUris == null) {
+                accountUris = new HashMap<>();
+                sUris.put(account, accountUris);
+            }
+            accountUris.put(label, Uri.parse((String) entry.getValue()));
+        }
+    }
+
+    /**
+     * @param account An account name
+     * @param label   A canonical label name
+     * @return The key the label's URI is stored under
+     */
+    private static String getKey(String account, String label) {
+        return KEY_URI_PREFIX + Uri.encode(account) + KEY_SEPARATOR + Uri.encode(label);
+    }
+
+    /**
+     * @param key A key from the preferences
+     * @return The account name the key stores a URI of, or null if it doesn't store a URI
+     */
+    private static String getAccount(String key) {
+        int separator = key.indexOf(KEY_SEPARATOR);
+        if (!key.startsWith(KEY_URI_PREFIX) || separator < 0) {
+            return null;
+        }
+        return Uri.decode(key.substring(KEY_URI_PREFIX.length(), separator));
+    }
+
+    /**
+     * @param context A Context to get preferences with
+     * @return The SharedPreferences the URIs are persisted in
+     */
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(URI_PREFS, Context.MODE_PRIVATE);
+    }
+}
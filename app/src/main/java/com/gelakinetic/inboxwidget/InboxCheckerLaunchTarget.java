@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+class InboxCheckerLaunchTarget {
+
+    static final String PACKAGE_INBOX = "com.google.android.apps.inbox";
+    static final String PACKAGE_GMAIL = "com.google.android.gm";
+
+    /* The apps a widget can open, in the order they are tried */
+    static final String[] PACKAGES = {PACKAGE_INBOX, PACKAGE_GMAIL};
+
+    /* Sent when a widget is clicked, so the click can be noticed before opening mail */
+    static final String ACTION_OPEN_INBOX = "com.gelakinetic.inboxwidget.OPEN_INBOX";
+
+    /* Resolved launch intents keyed by package. A null value means the app isn't installed */
+    private static final HashMap<String, Intent> sLaunchIntents = new HashMap<>();
+
+    /* Click intents keyed by appWidgetId. These only point at this app, so they never go stale */
+    private static final SparseArray<PendingIntent> sClickIntents = new SparseArray<>();
+
+    /**
+     * Get the PendingIntent a widget sends when clicked. It is built once per widget, then cached
+     *
+     * @param context     A Context to build the PendingIntent with
+     * @param appWidgetId The widget being clicked
+     * @return A PendingIntent which broadcasts ACTION_OPEN_INBOX to InboxCheckerAppWidgetProvider
+     */
+    static synchronized PendingIntent getClickIntent(Context context, int appWidgetId) {
+        PendingIntent pendingIntent = sClickIntents.get(appWidgetId);
+        if (pendingIntent == null) {
+            Intent intent = new Intent(context, InboxCheckerAppWidgetProvider.class);
+            intent.setAction(ACTION_OPEN_INBOX);
+            intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+            /* Each widget needs its own request code, or the extras would be shared */
+            pendingIntent = PendingIntent.getBroadcast(context, appWidgetId, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            sClickIntents.put(appWidgetId, pendingIntent);
+        }
+        return pendingIntent;
+    }
+
+    /**
+     * Forget a deleted widget's click intent, and cancel it so it can't be sent
+     *
+     * @param appWidgetId The widget which was deleted
+     */
+    static synchronized void removeClickIntent(int appWidgetId) {
+        PendingIntent pendingIntent = sClickIntents.get(appWidgetId);
+        if (pendingIntent != null) {
+            pendingIntent.cancel();
+            sClickIntents.remove(appWidgetId);
+        }
+    }
+
+    /**
+     * Forget the click intents of every widget which isn't live
+     *
+     * @param liveIds The IDs of every widget the host has, sorted
+     */
+    static synchronized void retainClickIntents(int[] liveIds) {
+        for (int i = sClickIntents.size() - 1; i >= 0; i--) {
+            if (Arrays.binarySearch(liveIds, sClickIntents.keyAt(i)) < 0) {
+                sClickIntents.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Get an Intent to open the user's mail app. The preferred app is tried first, then Inbox,
+     * then Gmail
+     *
+     * @param context          A Context to resolve launch intents with
+     * @param preferredPackage The package the widget was configured to open, or null
+     * @return A new Intent which launches a mail app, or null if none are installed
+     */
+    static synchronized Intent getLaunchIntent(Context context, String preferredPackage) {
+        if (preferredPackage != null) {
+            Intent intent = resolve(context, preferredPackage);
+            if (intent != null) {
+                return new Intent(intent);
+            }
+        }
+        for (String packageName : PACKAGES) {
+            Intent intent = resolve(context, packageName);
+            if (intent != null) {
+                return new Intent(intent);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param context     A Context to resolve the launch intent with
+     * @param packageName The package to check
+     * @return true if the package is installed and can be launched, false otherwise
+     */
+    static synchronized boolean isInstalled(Context context, String packageName) {
+        return resolve(context, packageName) != null;
+    }
+
+    /**
+     * Look up, and cache, the launch intent for a package
+     *
+     * @param context     A Context to resolve the launch intent with
+     * @param packageName The package to resolve
+     * @return The cached launch intent, or null if the package can't be launched. Don't modify it
+     */
+    private static Intent resolve(Context context, String packageName) {
+        if (!sLaunchIntents.containsKey(packageName)) {
+            sLaunchIntents.put(packageName,
+                    context.getPackageManager().getLaunchIntentForPackage(packageName));
+        }
+        return sLaunchIntents.get(packageName);
+    }
+
+    /**
+     * Forget all resolved launch intents. This is called when a mail app is installed, removed,
+     * or updated
+     */
+    static synchronized void invalidate() {
+        sLaunchIntents.clear();
+    }
+}
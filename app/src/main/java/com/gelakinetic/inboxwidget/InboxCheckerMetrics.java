@@ -0,0 +1,315 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.Context;
+import android.support.v4.util.AtomicFile;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+
+/**
+ * Counters for the refresh pipeline. Everything lives in fixed-size primitive arrays allocated
+ * up front, so recording a sample never allocates. Histograms use power-of-two buckets, where
+ * bucket 0 counts zeros and bucket i counts values in [2^(i-1), 2^i). The process rarely lives
+ * long, so the metrics are saved to disk after every refresh cycle and added back in when the
+ * next process starts
+ */
+class InboxCheckerMetrics {
+
+    private static final String METRICS_FILE = "metrics.json";
+
+    private static final int HISTOGRAM_BUCKETS = 16;
+
+    /* The number of accounts tracked for failures. Later accounts share the last slot */
+    private static final int MAX_ACCOUNTS = 16;
+
+    /* Counters, indexed by the COUNTER_ constants */
+    static final int COUNTER_ALARMS = 0;
+    static final int COUNTER_CYCLES = 1;
+    static final int COUNTER_QUERIES = 2;
+    static final int COUNTER_CACHE_HITS = 3;
+    static final int COUNTER_ROWS = 4;
+    static final int COUNTER_UPDATES_APPLIED = 5;
+    static final int COUNTER_UPDATES_SKIPPED = 6;
+    static final int COUNTER_FAILURES = 7;
+    /* Updates which only sent the badge, a subset of COUNTER_UPDATES_APPLIED */
+    static final int COUNTER_UPDATES_PARTIAL = 8;
+    /* Refresh requests, several of which may be coalesced into one cycle */
+    static final int COUNTER_TRIGGERS = 9;
+    /* Queries skipped, and circuit breakers opened, because an account kept failing */
+    static final int COUNTER_QUERIES_BLOCKED = 10;
+    static final int COUNTER_BREAKER_OPENS = 11;
+    /* Queries not started, because the account's last query is still running or the pool is full */
+    static final int COUNTER_QUERIES_REJECTED = 12;
+    /* Label list rows which differ from the account's previous read */
+    static final int COUNTER_ROWS_CHANGED = 13;
+    private static final int COUNTER_COUNT = 14;
+    private static final String[] COUNTER_NAMES = {
+            "alarms", "cycles", "queries", "cacheHits", "rows", "updatesApplied",
+            "updatesSkipped", "failures", "updatesPartial", "triggers",
+            "queriesBlocked", "breakerOpens", "queriesRejected", "rowsChanged"
+    };
+
+    /* Histograms, indexed by the HISTOGRAM_ constants */
+    static final int HISTOGRAM_CYCLE_MS = 0;
+    static final int HISTOGRAM_QUERY_MS = 1;
+    static final int HISTOGRAM_ROWS = 2;
+    private static final int HISTOGRAM_COUNT = 3;
+    private static final String[] HISTOGRAM_NAMES = {"cycleMs", "queryMs", "rowsPerQuery"};
+
+    private static final long[] sCounters = new long[COUNTER_COUNT];
+    private static final long[][] sHistograms = new long[HISTOGRAM_COUNT][HISTOGRAM_BUCKETS];
+    private static final long[] sHistogramMax = new long[HISTOGRAM_COUNT];
+
+    private static final String[] sFailureAccounts = new String[MAX_ACCOUNTS];
+    private static final long[] sFailureCounts = new long[MAX_ACCOUNTS];
+
+    /* Whether the saved metrics were added back in, so saving doesn't overwrite them */
+    private static boolean sRestored = false;
+
+    /**
+     * Add to a counter
+     *
+     * @param counter One of the COUNTER_ constants
+     * @param delta   The amount to add
+     */
+    static synchronized void increment(int counter, long delta) {
+        sCounters[counter] += delta;
+    }
+
+    /**
+     * Record a sample in a histogram
+     *
+     * @param histogram One of the HISTOGRAM_ constants
+     * @param value     The sample, which must not be negative
+     */
+    static synchronized void record(int histogram, long value) {
+        int bucket = Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        sHistograms[histogram][bucket]++;
+        if (value > sHistogramMax[histogram]) {
+            sHistogramMax[histogram] = value;
+        }
+    }
+
+    /**
+     * Count a failed query for an account
+     *
+     * @param account The account name whose query failed
+     */
+    static synchronized void recordFailure(String account) {
+        sCounters[COUNTER_FAILURES]++;
+        addFailures(account, 1);
+    }
+
+    /**
+     * @param account The account name whose queries failed
+     * @param count   The number of failures to add to the account's slot
+     */
+    private static void addFailures(String account, long count) {
+        for (int i = 0; i < MAX_ACCOUNTS; i++) {
+            if (sFailureAccounts[i] == null) {
+                /* First failure for this account, claim a slot */
+                sFailureAccounts[i] = account;
+            }
+            if (sFailureAccounts[i].equals(account) || i == MAX_ACCOUNTS - 1) {
+                sFailureCounts[i] += count;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Add the metrics saved by earlier processes to the ones recorded by this process. This reads
+     * a file, so it must run off the main thread, before the first save
+     *
+     * @param context A Context to find the files directory with
+     */
+    static void restore(Context context) {
+        JSONObject saved = null;
+        AtomicFile atomicFile = new AtomicFile(new File(context.getFilesDir(), METRICS_FILE));
+        FileInputStream in = null;
+        try {
+            in = atomicFile.openRead();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            saved = new JSONObject(bytes.toString("UTF-8"));
+        } catch (IOException | JSONException e) {
+            /* Nothing saved yet, or it can't be read. Start from zero */
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    /* Nothing to do */
+                }
+            }
+        }
+
+        synchronized (InboxCheckerMetrics.class) {
+            if (saved != null && !sRestored) {
+                merge(saved);
+            }
+            sRestored = true;
+        }
+    }
+
+    /**
+     * Add a snapshot to the current metrics
+     *
+     * @param saved A snapshot, as built by snapshot()
+     */
+    private static void merge(JSONObject saved) {
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            sCounters[i] += saved.optLong(COUNTER_NAMES[i], 0);
+        }
+        for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+            JSONObject histogram = saved.optJSONObject(HISTOGRAM_NAMES[i]);
+            if (histogram == null) {
+                continue;
+            }
+            JSONArray buckets = histogram.optJSONArray("buckets");
+            for (int j = 0; buckets != null && j < HISTOGRAM_BUCKETS && j < buckets.length();
+                 j++) {
+                sHistograms[i][j] += buckets.optLong(j, 0);
+            }
+            sHistogramMax[i] = Math.max(sHistogramMax[i], histogram.optLong("max", 0));
+        }
+        JSONObject failures = saved.optJSONObject("accountFailures");
+        if (failures != null) {
+            Iterator<String> accounts = failures.keys();
+            while (accounts.hasNext()) {
+                String account = accounts.next();
+                addFailures(account, failures.optLong(account, 0));
+            }
+        }
+    }
+
+    /**
+     * Save the metrics, so the next process picks up where this one left off. This writes a
+     * file, so it must run off the main thread. Nothing is saved until restore() has run
+     *
+     * @param context A Context to find the files directory with
+     */
+    static void save(Context context) {
+        byte[] bytes;
+        synchronized (InboxCheckerMetrics.class) {
+            if (!sRestored) {
+                return;
+            }
+            try {
+                bytes = snapshot().toString().getBytes("UTF-8");
+            } catch (JSONException | IOException e) {
+                return;
+            }
+        }
+
+        AtomicFile atomicFile = new AtomicFile(new File(context.getFilesDir(), METRICS_FILE));
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            out.write(bytes);
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            if (out != null) {
+                atomicFile.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * Write the metrics in a human readable form, for dumpsys
+     *
+     * @param writer The writer to dump to
+     */
+    static synchronized void dump(PrintWriter writer) {
+        writer.println("Inbox Widget metrics:");
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            writer.print("  ");
+            writer.print(COUNTER_NAMES[i]);
+            writer.print(": ");
+            writer.println(sCounters[i]);
+        }
+        for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+            writer.print("  ");
+            writer.print(HISTOGRAM_NAMES[i]);
+            writer.print(" (max ");
+            writer.print(sHistogramMax[i]);
+            writer.print("):");
+            for (int j = 0; j < HISTOGRAM_BUCKETS; j++) {
+                if (sHistograms[i][j] != 0) {
+                    writer.print(" <");
+                    writer.print(1L << j);
+                    writer.print('=');
+                    writer.print(sHistograms[i][j]);
+                }
+            }
+            writer.println();
+        }
+        for (int i = 0; i < MAX_ACCOUNTS && sFailureAccounts[i] != null; i++) {
+            writer.print("  failures for ");
+            writer.print(sFailureAccounts[i]);
+            writer.print(": ");
+            writer.println(sFailureCounts[i]);
+        }
+    }
+
+    /**
+     * Copy the metrics into a JSON object, for exporting
+     *
+     * @return A snapshot of every counter, histogram, and per-account failure count
+     * @throws JSONException If the snapshot can't be built
+     */
+    static synchronized JSONObject snapshot() throws JSONException {
+        JSONObject snapshot = new JSONObject();
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            snapshot.put(COUNTER_NAMES[i], sCounters[i]);
+        }
+        for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+            JSONArray buckets = new JSONArray();
+            for (int j = 0; j < HISTOGRAM_BUCKETS; j++) {
+                buckets.put(sHistograms[i][j]);
+            }
+            JSONObject histogram = new JSONObject();
+            histogram.put("buckets", buckets);
+            histogram.put("max", sHistogramMax[i]);
+            snapshot.put(HISTOGRAM_NAMES[i], histogram);
+        }
+        JSONObject failures = new JSONObject();
+        for (int i = 0; i < MAX_ACCOUNTS && sFailureAccounts[i] != null; i++) {
+            failures.put(sFailureAccounts[i], sFailureCounts[i]);
+        }
+        snapshot.put("accountFailures", failures);
+        return snapshot;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Exposes the refresh pipeline metrics while the app isn't in the foreground. Providers are
+ * created whenever the process starts, so this is reachable any time the widget is working.
+ * Reading it needs the DUMP permission, which the shell has:
+ * <p/>
+ * adb shell dumpsys activity provider com.gelakinetic.inboxwidget/.InboxCheckerMetricsProvider
+ * <p/>
+ * prints the metrics, and adding "--json" prints an exportable snapshot instead.
+ * <p/>
+ * adb shell content query --uri content://com.gelakinetic.inboxwidget.metrics
+ * <p/>
+ * returns the snapshot as a single row, and starts the process if it isn't running. Builds with
+ * an application ID suffix add it to the authority
+ */
+public class InboxCheckerMetricsProvider extends ContentProvider {
+
+    /* The single column of the snapshot row */
+    static final String COLUMN_SNAPSHOT = "snapshot";
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    /**
+     * @param uri           Ignored, there is only the snapshot
+     * @param projection    Ignored
+     * @param selection     Ignored
+     * @param selectionArgs Ignored
+     * @param sortOrder     Ignored
+     * @return A Cursor with one row holding the JSON snapshot
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{COLUMN_SNAPSHOT}, 1);
+        try {
+            cursor.addRow(new Object[]{getSnapshot().toString()});
+        } catch (JSONException e) {
+            cursor.addRow(new Object[]{e.toString()});
+        }
+        return cursor;
+    }
+
+    /**
+     * Print the metrics, the unread history, and the polling state
+     *
+     * @param fd     The raw file descriptor that the dump is being sent to
+     * @param writer The PrintWriter to which the state should be dumped
+     * @param args   Additional arguments to the dump request
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && Arrays.asList(args).contains("--json")) {
+            try {
+                writer.println(getSnapshot().toString());
+            } catch (JSONException e) {
+                writer.println(e.toString());
+            }
+        } else {
+            InboxCheckerMetrics.dump(writer);
+            InboxCheckerUnreadHistory.dump(getContext(), writer);
+            writer.print("  stable refreshes: ");
+            writer.println(InboxCheckerAdaptiveSchedulingPolicy.getStableRefreshes(getContext()));
+            writer.print("  last backoff interval ms: ");
+            writer.println(InboxCheckerAdaptiveSchedulingPolicy.getLastIntervalMs(getContext()));
+        }
+    }
+
+    /**
+     * @return Every metric, the unread history, and the polling state, as JSON
+     * @throws JSONException If a value can't be represented in JSON
+     */
+    private JSONObject getSnapshot() throws JSONException {
+        JSONObject snapshot = InboxCheckerMetrics.snapshot();
+        snapshot.put("history", InboxCheckerUnreadHistory.snapshot(getContext()));
+        snapshot.put("stableRefreshes",
+                InboxCheckerAdaptiveSchedulingPolicy.getStableRefreshes(getContext()));
+        snapshot.put("lastIntervalMs",
+                InboxCheckerAdaptiveSchedulingPolicy.getLastIntervalMs(getContext()));
+        return snapshot;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Metrics are read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Metrics are read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Metrics are read only");
+    }
+}
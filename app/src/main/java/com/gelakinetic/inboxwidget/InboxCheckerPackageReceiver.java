@@ -0,0 +1,52 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+public class InboxCheckerPackageReceiver extends BroadcastReceiver {
+
+    /**
+     * Called when a package is added, removed, or replaced. If it's a mail app the widget can
+     * open, forget the cached launch intents so they are resolved again on the next click. If
+     * it's Gmail, its label URIs may have changed too, so forget those
+     *
+     * @param context The Context in which the receiver is running
+     * @param intent  The intent that called this receiver, with the package in its data
+     */
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (intent.getData() == null) {
+            return;
+        }
+        String packageName = intent.getData().getSchemeSpecificPart();
+        for (String launchPackage : InboxCheckerLaunchTarget.PACKAGES) {
+            if (launchPackage.equals(packageName)) {
+                InboxCheckerLaunchTarget.invalidate();
+                break;
+            }
+        }
+        if (InboxCheckerLaunchTarget.PACKAGE_GMAIL.equals(packageName)) {
+            InboxCheckerLabelUriCache.invalidateAll(context);
+        }
+    }
+}
@@ -21,17 +21,44 @@ package com.gelakinetic.inboxwidget;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
-import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.os.StrictMode;
 import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
 
 public class InboxCheckerPollingAlarm extends BroadcastReceiver {
 
     private static final int POLLING_INTERVAL_MS = 1000 * 60;
 
+    /* When the Gmail provider pushes changes to observers, a poll only queries this often, as a
+     * safety net against missed notifications
+     */
+    private static final long FALLBACK_POLLING_INTERVAL_MS = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+
+    /* Marks the one-off refresh, which always queries */
+    private static final String EXTRA_ONE_OFF = "one_off";
+
+    /* Decides how often to poll */
+    private static final InboxCheckerSchedulingPolicy sPolicy =
+            new InboxCheckerPowerPolicy(new InboxCheckerAdaptiveSchedulingPolicy());
+
+    /* Whether this process observes the labels of every account. Observers die with the
+     * process, so this starts out false after a kill
+     */
+    private static boolean sObserving = false;
+
+    /* When a poll last queried, in elapsedRealtime() */
+    private static long sLastPollTime = 0;
+
+    /* When the widgets were last refreshed, in elapsedRealtime() */
+    private static long sLastRefreshTime = 0;
+
+    /* Request codes, so a one-off refresh doesn't replace the polling alarm */
+    private static final int REQUEST_POLL = 0;
+    private static final int REQUEST_ONE_OFF = 1;
+
     /**
      * Build and return a PendingIntent for the Alarm to call
      *
@@ -39,40 +66,163 @@ public class InboxCheckerPollingAlarm extends BroadcastReceiver {
      * @return A PendingIntent to either set or clear
      */
     private static PendingIntent getPendingIntent(Context context) {
+        return getPendingIntent(context, REQUEST_POLL);
+    }
+
+    /**
+     * Build and return a PendingIntent for the Alarm to call
+     *
+     * @param context     The Context to build the intent with
+     * @param requestCode REQUEST_POLL for the polling alarm, or REQUEST_ONE_OFF
+     * @return A PendingIntent to either set or clear
+     */
+    private static PendingIntent getPendingIntent(Context context, int requestCode) {
         Intent intent = new Intent(context, InboxCheckerPollingAlarm.class);
-        return PendingIntent.getBroadcast(context, 0, intent, 0);
+        if (requestCode == REQUEST_ONE_OFF) {
+            intent.putExtra(EXTRA_ONE_OFF, true);
+        }
+        return PendingIntent.getBroadcast(context, requestCode, intent, 0);
+    }
+
+    /**
+     * Refresh the widgets once, after a delay, without touching the polling alarm. This replaces
+     * any one-off refresh which is still pending
+     *
+     * @param context A Context to set the alarm with
+     * @param delayMs How long to wait before refreshing, in milliseconds
+     */
+    static void scheduleRefresh(Context context, long delayMs) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(
+                AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + delayMs,
+                getPendingIntent(context, REQUEST_ONE_OFF));
     }
 
     /**
-     * Set the polling alarm. This is called when a widget is added, and on boot. The alarm is
-     * set to poll every minute, inexactly
+     * Set the polling alarm. This is called when a widget is added, and on boot. The alarm polls
+     * every minute at most, inexactly, and the scheduling policy may stretch that. While this
+     * process observes the labels of every account, polls only query every fifteen minutes, in
+     * case a change notification is missed. A poll in a new process always queries, so a killed
+     * process leaves the counts stale no longer than polling alone would
      *
      * @param context A Context to set the alarm with
      */
-    public static void setAlarm(Context context) {
+    public static synchronized void setAlarm(Context context) {
 
         /* First, cancel any pending alarms, just in case */
         cancelAlarm(context);
 
         /* Only set an alarm if there is at least one widget */
-        AppWidgetManager widgetManager = AppWidgetManager.getInstance(context);
-        int[] ids = widgetManager.getAppWidgetIds(new ComponentName(context,
-                InboxCheckerAppWidgetProvider.class));
-        if (ids.length == 0) {
+        if (InboxCheckerWidgetLifecycle.getLiveIds(context).length == 0) {
+            InboxCheckerLabelObserver.unregisterObservers(context);
+            sObserving = false;
             return;
         }
 
-        /* Set it to repeat every minute in an inexact fashion. This saves battery because the
-         * system can bunch together alarms
+        /* Watch the labels of each account, so polls can skip their queries if that works */
+        sObserving = InboxCheckerLabelObserver.registerObservers(context);
+
+        scheduleNextPoll(context);
+    }
+
+    /**
+     * Schedule the next poll with the interval from the scheduling policy. While every account
+     * keeps failing, the poll waits for the first circuit breaker probe, since it couldn't query
+     * anything before then
+     *
+     * @param context A Context to set the alarm with
+     */
+    private static void scheduleNextPoll(Context context) {
+        long interval = sPolicy.getIntervalMs(context, POLLING_INTERVAL_MS);
+        interval = Math.max(interval, InboxCheckerCircuitBreaker.getProbeDelayMs(context));
+
+        /* Set a one-shot alarm, which is set again after the next refresh. This replaces any
+         * pending one-shot alarm, and is inexact since KitKat, so the system can bunch alarms
          */
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmManager.setInexactRepeating(
+        alarmManager.set(
                 AlarmManager.ELAPSED_REALTIME,
-                SystemClock.elapsedRealtime() + POLLING_INTERVAL_MS,
-                POLLING_INTERVAL_MS,
+                SystemClock.elapsedRealtime() + interval,
                 getPendingIntent(context));
     }
 
+    /**
+     * Called when widgets are deleted or a widget provider is disabled. Once the last widget is
+     * gone, polling stops and nothing is observed. Otherwise only accounts which still have a
+     * widget stay observed
+     *
+     * @param context A Context to cancel the alarms with
+     */
+    static synchronized void onWidgetsRemoved(Context context) {
+        if (InboxCheckerWidgetLifecycle.getLiveIds(context).length > 0) {
+            sObserving = InboxCheckerLabelObserver.registerObservers(context);
+            return;
+        }
+
+        cancelAlarm(context);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getPendingIntent(context, REQUEST_ONE_OFF));
+        InboxCheckerLabelObserver.unregisterObservers(context);
+        sObserving = false;
+    }
+
+    /**
+     * Called after the widgets were refreshed, so the policy can adjust the polling interval
+     *
+     * @param context A Context to set the alarm with
+     * @param changed true if any widget's unread count changed, false otherwise
+     */
+    static synchronized void onRefreshCompleted(Context context, boolean changed) {
+        sLastRefreshTime = SystemClock.elapsedRealtime();
+        sPolicy.onRefreshCompleted(context, changed);
+        scheduleNextPoll(context);
+    }
+
+    /**
+     * Called when the user opens their mail from a widget, so the policy can poll sooner
+     *
+     * @param context A Context to set the alarm with
+     */
+    static synchronized void onUserInteraction(Context context) {
+        sPolicy.onUserInteraction(context);
+        scheduleNextPoll(context);
+    }
+
+    /**
+     * Called when the charger is plugged or unplugged, or the battery runs low or recovers. The
+     * policy is asked for a new interval right away, instead of at the next poll
+     *
+     * @param context A Context to set the alarm with
+     */
+    static synchronized void onPowerStateChanged(Context context) {
+        if (InboxCheckerWidgetRegistry.getIds(context, null).length > 0) {
+            scheduleNextPoll(context);
+        }
+    }
+
+    /**
+     * Called when the user unlocks the device. If polling was stretched or paused long enough that
+     * the widgets could be behind, refresh them once to catch up. Widgets in their quiet hours
+     * are left alone
+     *
+     * @param context       A Context to refresh with
+     * @param pendingResult The unlock broadcast, finished once the widgets are rendered
+     */
+    static void onUserPresent(Context context, BroadcastReceiver.PendingResult pendingResult) {
+        boolean behind;
+        synchronized (InboxCheckerPollingAlarm.class) {
+            behind = SystemClock.elapsedRealtime() - sLastRefreshTime >= POLLING_INTERVAL_MS;
+        }
+        int[] ids = InboxCheckerPowerPolicy.removeQuietWidgets(context,
+                InboxCheckerWidgetRegistry.getIds(context, null));
+        if (behind && ids.length > 0) {
+            InboxCheckerAppWidgetProvider.refresh(context, ids, false, pendingResult);
+        } else {
+            pendingResult.finish();
+        }
+    }
+
     /**
      * Cancel the polling Alarm. This is called when the preference is toggled or before resetting
      * the alarm
@@ -86,13 +236,42 @@ public class InboxCheckerPollingAlarm extends BroadcastReceiver {
     }
 
     /**
-     * When the Alarm fires, update the widgets
+     * When the Alarm fires, update the configured widgets in process, keeping the broadcast alive
+     * until they're rendered. If the process was killed since the alarm was set, the observers are
+     * gone too, so register them again and query. If they were alive all along, only query once
+     * the fallback interval has passed
      *
      * @param context A context that fired the alarm
      * @param intent  The intent that fired the alarm
      */
     @Override
     public void onReceive(Context context, Intent intent) {
-        InboxCheckerAppWidgetConfigure.updateWidgets(context);
+        TraceCompat.beginSection("InboxChecker.alarm");
+        try {
+            InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_ALARMS, 1);
+            synchronized (InboxCheckerPollingAlarm.class) {
+                /* Registering observers and setting alarms are IPCs on the main thread */
+                StrictMode.noteSlowCall("InboxChecker.alarm");
+                boolean observed = sObserving;
+                sObserving = InboxCheckerLabelObserver.registerObservers(context);
+
+                /* Keep the alarm going even if the refresh never completes */
+                scheduleNextPoll(context);
+
+                /* The observers saw every change since the last query, nothing to catch up on */
+                long now = SystemClock.elapsedRealtime();
+                if (observed && sObserving && !intent.getBooleanExtra(EXTRA_ONE_OFF, false) &&
+                        now - sLastPollTime < FALLBACK_POLLING_INTERVAL_MS) {
+                    return;
+                }
+                sLastPollTime = now;
+            }
+            /* Another widget may keep the alarm going, but quiet ones are left alone */
+            InboxCheckerAppWidgetProvider.refresh(context,
+                    InboxCheckerPowerPolicy.removeQuietWidgets(context,
+                            InboxCheckerWidgetRegistry.getIds(context, null)), false, goAsync());
+        } finally {
+            TraceCompat.endSection();
+        }
     }
 }
@@ -0,0 +1,313 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.SparseArray;
+
+import com.gelakinetic.inboxwidget.core.InboxCheckerQuietHours;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Picks the polling interval from the device's power state, the time of day, and the power
+ * profile and quiet hours each widget was configured with. Each profile is a table of rules which
+ * are checked in order, and the first rule whose signal is on decides the interval. If no rule
+ * matches, the wrapped policy decides. The device signals are read once per scheduling decision.
+ * With several widgets, the most demanding one wins, so the alarm only pauses when every widget is
+ * in its quiet hours
+ */
+class InboxCheckerPowerPolicy implements InboxCheckerSchedulingPolicy {
+
+    /* Power profiles, chosen per widget */
+    static final int PROFILE_REALTIME = 0;
+    static final int PROFILE_BALANCED = 1;
+    static final int PROFILE_SAVER = 2;
+
+    /* Quiet hours, chosen per widget. No polling happens during them */
+    static final int QUIET_HOURS_NONE = 0;
+    static final int QUIET_HOURS_NIGHT = 1;
+    static final int QUIET_HOURS_WORK = 2;
+
+    /* The start and end of each quiet hours choice, in minutes since midnight. The end may be
+     * earlier than the start, for hours which span midnight
+     */
+    private static final int[][] QUIET_WINDOWS = {
+            null,
+            {22 * 60, 7 * 60},
+            {9 * 60, 17 * 60}
+    };
+
+    /* The signals a rule can depend on */
+    private static final int SIGNAL_ALWAYS = 0;
+    private static final int SIGNAL_QUIET_HOURS = 1;
+    private static final int SIGNAL_CHARGING = 2;
+    private static final int SIGNAL_POWER_SAVE = 3;
+    private static final int SIGNAL_BATTERY_LOW = 4;
+
+    /* What a rule does. Pause waits out the quiet hours, base polls at the base interval without
+     * backing off, and scale stretches the wrapped policy's interval
+     */
+    private static final int EFFECT_PAUSE = 0;
+    private static final int EFFECT_BASE = 1;
+    private static final int EFFECT_SCALE = 2;
+
+    /* Below this battery percentage, the battery counts as low */
+    private static final int BATTERY_LOW_PERCENT = 20;
+
+    /**
+     * One line of a profile's rule table
+     */
+    private static class Rule {
+        final int signal;
+        final int effect;
+        final int factor;
+
+        Rule(int signal, int effect, int factor) {
+            this.signal = signal;
+            this.effect = effect;
+            this.factor = factor;
+        }
+    }
+
+    /* The rule tables, indexed by profile */
+    private static final Rule[][] PROFILES = {
+            /* Realtime: always keep up, only ease off in power save */
+            {
+                    new Rule(SIGNAL_QUIET_HOURS, EFFECT_PAUSE, 1),
+                    new Rule(SIGNAL_CHARGING, EFFECT_BASE, 1),
+                    new Rule(SIGNAL_POWER_SAVE, EFFECT_SCALE, 2),
+            },
+            /* Balanced: fast while charging, slow when the battery is low */
+            {
+                    new Rule(SIGNAL_QUIET_HOURS, EFFECT_PAUSE, 1),
+                    new Rule(SIGNAL_CHARGING, EFFECT_BASE, 1),
+                    new Rule(SIGNAL_POWER_SAVE, EFFECT_SCALE, 4),
+                    new Rule(SIGNAL_BATTERY_LOW, EFFECT_SCALE, 4),
+            },
+            /* Saver: slow all the time, slower still when the battery is low */
+            {
+                    new Rule(SIGNAL_QUIET_HOURS, EFFECT_PAUSE, 1),
+                    new Rule(SIGNAL_POWER_SAVE, EFFECT_SCALE, 8),
+                    new Rule(SIGNAL_BATTERY_LOW, EFFECT_SCALE, 8),
+                    new Rule(SIGNAL_ALWAYS, EFFECT_SCALE, 2),
+            },
+    };
+
+    /**
+     * The device state a scheduling decision is made from
+     */
+    private static class Signals {
+        boolean charging;
+        boolean powerSave;
+        boolean batteryLow;
+        int minuteOfDay;
+    }
+
+    private final InboxCheckerSchedulingPolicy mPolicy;
+
+    /**
+     * @param policy The policy which decides the interval when no rule matches, and which scale
+     *               rules stretch
+     */
+    InboxCheckerPowerPolicy(InboxCheckerSchedulingPolicy policy) {
+        mPolicy = policy;
+    }
+
+    @Override
+    public long getIntervalMs(Context context, long baseIntervalMs) {
+        Signals signals = readSignals(context);
+        long policyIntervalMs = mPolicy.getIntervalMs(context, baseIntervalMs);
+
+        /* Evaluate each distinct profile and quiet hours pair once, and take the shortest */
+        SparseArray<InboxCheckerWidgetConfig> configs = InboxCheckerWidgetRegistry.getAll(context);
+        long interval = Long.MAX_VALUE;
+        boolean[] evaluated = new boolean[PROFILES.length * QUIET_WINDOWS.length];
+        for (int i = 0; i < configs.size(); i++) {
+            InboxCheckerWidgetConfig config = configs.valueAt(i);
+            int profile = (config.powerProfile >= 0 && config.powerProfile < PROFILES.length)
+                    ? config.powerProfile : PROFILE_BALANCED;
+            int quietHours = getQuietHours(config);
+            int key = profile * QUIET_WINDOWS.length + quietHours;
+            if (!evaluated[key]) {
+                evaluated[key] = true;
+                interval = Math.min(interval, evaluate(PROFILES[profile], quietHours, signals,
+                        baseIntervalMs, policyIntervalMs));
+            }
+        }
+        return (interval == Long.MAX_VALUE) ? policyIntervalMs : interval;
+    }
+
+    /**
+     * Drop the widgets which are in their quiet hours. Polls, change notifications and unlocks
+     * don't refresh them, even while another widget keeps the alarm going
+     *
+     * @param context      A Context to read the widget registry with
+     * @param appWidgetIds The widgets about to be refreshed
+     * @return The widgets which aren't in their quiet hours now
+     */
+    static int[] removeQuietWidgets(Context context, int[] appWidgetIds) {
+        int minuteOfDay = getMinuteOfDay();
+        int[] awakeIds = new int[appWidgetIds.length];
+        int awake = 0;
+        for (int appWidgetId : appWidgetIds) {
+            InboxCheckerWidgetConfig config = InboxCheckerWidgetRegistry.get(context, appWidgetId);
+            if (config == null ||
+                    getMinutesUntilQuietEnd(getQuietHours(config), minuteOfDay) == 0) {
+                awakeIds[awake++] = appWidgetId;
+            }
+        }
+        return (awake == appWidgetIds.length) ? appWidgetIds : Arrays.copyOf(awakeIds, awake);
+    }
+
+    @Override
+    public void onRefreshCompleted(Context context, boolean changed) {
+        mPolicy.onRefreshCompleted(context, changed);
+    }
+
+    @Override
+    public void onUserInteraction(Context context) {
+        mPolicy.onUserInteraction(context);
+    }
+
+    /**
+     * Find the first rule whose signal is on, and apply it
+     *
+     * @param rules            The profile's rule table
+     * @param quietHours       The widget's quiet hours choice
+     * @param signals          The device state
+     * @param baseIntervalMs   The polling interval to start from
+     * @param policyIntervalMs The interval the wrapped policy picked
+     * @return The time until the next poll, in milliseconds
+     */
+    private static long evaluate(Rule[] rules, int quietHours, Signals signals,
+                                 long baseIntervalMs, long policyIntervalMs) {
+        for (Rule rule : rules) {
+            if (!isOn(rule.signal, quietHours, signals)) {
+                continue;
+            }
+            switch (rule.effect) {
+                case EFFECT_PAUSE:
+                    return Math.max(baseIntervalMs,
+                            getMinutesUntilQuietEnd(quietHours, signals.minuteOfDay) * 60 * 1000L);
+                case EFFECT_BASE:
+                    return baseIntervalMs;
+                case EFFECT_SCALE:
+                default:
+                    return policyIntervalMs * rule.factor;
+            }
+        }
+        return policyIntervalMs;
+    }
+
+    /**
+     * @param signal     One of the SIGNAL_ constants
+     * @param quietHours The widget's quiet hours choice
+     * @param signals    The device state
+     * @return true if the signal is on, false otherwise
+     */
+    private static boolean isOn(int signal, int quietHours, Signals signals) {
+        switch (signal) {
+            case SIGNAL_QUIET_HOURS:
+                return getMinutesUntilQuietEnd(quietHours, signals.minuteOfDay) > 0;
+            case SIGNAL_CHARGING:
+                return signals.charging;
+            case SIGNAL_POWER_SAVE:
+                return signals.powerSave;
+            case SIGNAL_BATTERY_LOW:
+                return signals.batteryLow;
+            case SIGNAL_ALWAYS:
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @param config A widget's configuration
+     * @return The widget's quiet hours choice, or QUIET_HOURS_NONE if it isn't a known one
+     */
+    private static int getQuietHours(InboxCheckerWidgetConfig config) {
+        return (config.quietHours >= 0 && config.quietHours < QUIET_WINDOWS.length)
+                ? config.quietHours : QUIET_HOURS_NONE;
+    }
+
+    /**
+     * @param quietHours  The widget's quiet hours choice
+     * @param minuteOfDay The current time, in minutes since midnight
+     * @return The minutes left in the quiet hours, or 0 if they aren't on now
+     */
+    private static int getMinutesUntilQuietEnd(int quietHours, int minuteOfDay) {
+        if (QUIET_WINDOWS[quietHours] == null) {
+            return 0;
+        }
+        return InboxCheckerQuietHours.getMinutesUntilEnd(QUIET_WINDOWS[quietHours][0],
+                QUIET_WINDOWS[quietHours][1], minuteOfDay);
+    }
+
+    /**
+     * Read the device state once. The battery state comes from the sticky battery broadcast, so
+     * no receiver is registered
+     *
+     * @param context A Context to read the device state with
+     * @return The device state
+     */
+    private static Signals readSignals(Context context) {
+        Signals signals = new Signals();
+        Intent battery = context.getApplicationContext().registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            signals.charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            signals.batteryLow = level >= 0 && scale > 0 &&
+                    level * 100 < BATTERY_LOW_PERCENT * scale;
+        }
+        signals.powerSave = isPowerSaveMode(
+                (PowerManager) context.getSystemService(Context.POWER_SERVICE));
+
+        signals.minuteOfDay = getMinuteOfDay();
+        return signals;
+    }
+
+    /**
+     * @return The current local time, in minutes since midnight
+     */
+    private static int getMinuteOfDay() {
+        Calendar now = Calendar.getInstance();
+        return now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+    }
+
+    /**
+     * @param powerManager The PowerManager to check with
+     * @return true if battery saver is on, false otherwise
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isPowerSaveMode(PowerManager powerManager) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                powerManager.isPowerSaveMode();
+    }
+}
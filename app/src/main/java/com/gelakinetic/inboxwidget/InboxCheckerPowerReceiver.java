@@ -0,0 +1,44 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+public class InboxCheckerPowerReceiver extends BroadcastReceiver {
+
+    /**
+     * Called when the power state changes, or the user unlocks the device. Power changes make the
+     * polling policy pick a new interval, and unlocking catches up on a refresh if the widgets
+     * could be behind
+     *
+     * @param context The Context in which the receiver is running
+     * @param intent  The intent that called this receiver
+     */
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_USER_PRESENT.equals(intent.getAction())) {
+            InboxCheckerPollingAlarm.onUserPresent(context, goAsync());
+        } else {
+            InboxCheckerPollingAlarm.onPowerStateChanged(context);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.SparseBooleanArray;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses refresh triggers which land close together into a single refresh cycle. Every widget
+ * requested during the debounce window is refreshed once, and cycles run one at a time on a
+ * single thread, so no account is ever queried by two cycles at once
+ */
+class InboxCheckerRefreshCoordinator {
+
+    /* Long enough to catch bursts, like an alarm and an observer firing together */
+    private static final long DEBOUNCE_MS = 500;
+
+    /* Broadcast receivers get ten seconds, leave some slack for rendering and finishing */
+    private static final long UPDATE_DEADLINE_MS = 1000 * 8;
+
+    /* Refresh cycles, and anything else which renders widgets, run one at a time here */
+    private static final ScheduledExecutorService sExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /* The widgets requested since the last cycle started, and whether each needs a full render */
+    private static final SparseBooleanArray sPendingIds = new SparseBooleanArray();
+    /* The broadcasts waiting on the next cycle */
+    private static final ArrayList<BroadcastReceiver.PendingResult> sPendingResults =
+            new ArrayList<>();
+    /* When the oldest pending request was made, which bounds the next cycle's deadline */
+    private static long sFirstRequestTime = 0;
+    /* When the oldest waiting broadcast was received. Its budget caps the next cycle's deadline */
+    private static long sFirstResultTime = 0;
+    /* Whether a cycle is scheduled and hasn't started yet */
+    private static boolean sCycleScheduled = false;
+
+    /**
+     * Ask for some widgets to be refreshed. The refresh starts after the debounce window, along
+     * with everything else requested in that window
+     *
+     * @param context       A Context to query and render with
+     * @param appWidgetIds  The widgets to refresh
+     * @param fullRender    true to render the widgets in full even if their badge didn't change
+     * @param pendingResult The broadcast to finish once the widgets are rendered, or null if the
+     *                      caller isn't a broadcast receiver
+     */
+    static synchronized void request(Context context, int[] appWidgetIds, boolean fullRender,
+                                     BroadcastReceiver.PendingResult pendingResult) {
+        InboxCheckerMetrics.increment(InboxCheckerMetrics.COUNTER_TRIGGERS, 1);
+
+        for (int appWidgetId : appWidgetIds) {
+            sPendingIds.put(appWidgetId, fullRender || sPendingIds.get(appWidgetId));
+        }
+        if (pendingResult != null) {
+            if (sPendingResults.isEmpty()) {
+                sFirstResultTime = SystemClock.elapsedRealtime();
+            }
+            sPendingResults.add(pendingResult);
+        }
+
+        if (!sCycleScheduled) {
+            sCycleScheduled = true;
+            sFirstRequestTime = SystemClock.elapsedRealtime();
+            final Context appContext = context.getApplicationContext();
+            sExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runCycle(appContext);
+                }
+            }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Drop some widgets from the next cycle, because they were deleted or got new IDs. A cycle
+     * which already started still renders them
+     *
+     * @param appWidgetIds The widgets to drop
+     */
+    static synchronized void cancel(int[] appWidgetIds) {
+        for (int appWidgetId : appWidgetIds) {
+            sPendingIds.delete(appWidgetId);
+        }
+    }
+
+    /**
+     * Run something on the refresh thread, so it doesn't overlap a refresh cycle
+     *
+     * @param runnable The work to run
+     */
+    static void execute(Runnable runnable) {
+        sExecutor.execute(runnable);
+    }
+
+    /**
+     * Refresh every widget requested since the last cycle, then finish every broadcast which was
+     * waiting on it. Requests made while this runs are picked up by the next cycle. If this cycle
+     * was queued behind a slow one and the oldest broadcast's budget is nearly spent, the
+     * broadcasts are finished before querying, so they never outlive their timeout
+     *
+     * @param context A Context to query and render with
+     */
+    private static void runCycle(Context context) {
+        /* Take everything requested so far */
+        int[] appWidgetIds;
+        int[] fullRenderIds;
+        ArrayList<BroadcastReceiver.PendingResult> pendingResults;
+        long deadline;
+        synchronized (InboxCheckerRefreshCoordinator.class) {
+            appWidgetIds = new int[sPendingIds.size()];
+            int fullRenderCount = 0;
+            for (int i = 0; i < sPendingIds.size(); i++) {
+                appWidgetIds[i] = sPendingIds.keyAt(i);
+                if (sPendingIds.valueAt(i)) {
+                    fullRenderCount++;
+                }
+            }
+            fullRenderIds = new int[fullRenderCount];
+            fullRenderCount = 0;
+            for (int i = 0; i < sPendingIds.size(); i++) {
+                if (sPendingIds.valueAt(i)) {
+                    fullRenderIds[fullRenderCount++] = sPendingIds.keyAt(i);
+                }
+            }
+            sPendingIds.clear();
+
+            pendingResults = new ArrayList<>(sPendingResults);
+            sPendingResults.clear();
+
+            /* The oldest waiting broadcast sets the deadline. Without one, leave the queries some
+             * time even if this cycle started late
+             */
+            if (pendingResults.isEmpty()) {
+                deadline = Math.max(sFirstRequestTime + UPDATE_DEADLINE_MS,
+                        SystemClock.elapsedRealtime() + DEBOUNCE_MS);
+            } else {
+                deadline = sFirstResultTime + UPDATE_DEADLINE_MS;
+            }
+            sCycleScheduled = false;
+        }
+
+        /* Too late to query within the broadcasts' budget, let them go and refresh anyway */
+        long now = SystemClock.elapsedRealtime();
+        if (deadline - now < DEBOUNCE_MS) {
+            for (BroadcastReceiver.PendingResult pendingResult : pendingResults) {
+                pendingResult.finish();
+            }
+            pendingResults.clear();
+            deadline = now + UPDATE_DEADLINE_MS;
+        }
+
+        try {
+            if (appWidgetIds.length > 0) {
+                InboxCheckerRenderState.requireFullRender(context, fullRenderIds);
+                boolean changed = InboxCheckerAppWidgetProvider.updateWidgets(context,
+                        AppWidgetManager.getInstance(context), appWidgetIds, deadline);
+                InboxCheckerPollingAlarm.onRefreshCompleted(context, changed);
+            }
+            /* The process may be killed once the broadcasts finish, so keep the metrics now */
+            InboxCheckerMetrics.save(context);
+        } finally {
+            /* Let the system know the broadcasts were handled */
+            for (BroadcastReceiver.PendingResult pendingResult : pendingResults) {
+                pendingResult.finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.gelakinetic.inboxwidget.core.InboxCheckerBadge;
+
+import java.util.Arrays;
+import java.util.Map;
+
+class InboxCheckerRenderState {
+
+    private static final String RENDER_STATE_PREFS = "RenderState";
+
+    /* The badge is hidden because there is no unread mail. Any other state is the badge text */
+    static final String STATE_HIDDEN = InboxCheckerBadge.STATE_HIDDEN;
+    /* The widget has no account, so the badge was left alone */
+    static final String STATE_NO_ACCOUNT = InboxCheckerBadge.STATE_NO_ACCOUNT;
+    /* The widget's accounts keep failing to be read */
+    static final String STATE_ERROR = InboxCheckerBadge.STATE_ERROR;
+
+    /* The last rendered state of each widget, keyed by appWidgetId. Null until loaded */
+    private static SparseArray<String> sStates = null;
+    /* What a widget needs from the next render */
+    static final int RENDER_NONE = 0;
+    static final int RENDER_PARTIAL = 1;
+    static final int RENDER_FULL = 2;
+
+    /* Widgets which need a full render even if nothing changed, because they show a snapshot from
+     * before boot, or because the host may have lost their views
+     */
+    private static final SparseBooleanArray sFullRender = new SparseBooleanArray();
+
+    /* Persisted in front of a widget's state while it needs a full render, so a process which
+     * dies before the render doesn't lose it. No badge text starts with it
+     */
+    private static final String FULL_RENDER_PREFIX = "*";
+
+    /**
+     * Load the persisted render states and full render flags into memory, once per process
+     *
+     * @param context A Context to read preferences with
+     */
+    private static void load(Context context) {
+        if (sStates != null) {
+            return;
+        }
+        sStates = new SparseArray<>();
+        Map<String, ?> entries = getPreferences(context).getAll();
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            if (entry.getValue() instanceof String) {
+                try {
+                    int appWidgetId = Integer.parseInt(entry.getKey());
+                    String state = (String) entry.getValue();
+                    if (state.startsWith(FULL_RENDER_PREFIX)) {
+                        state = state.substring(FULL_RENDER_PREFIX.length());
+                        sFullRender.put(appWidgetId, true);
+                    }
+                    sStates.put(appWidgetId, state);
+                } catch (NumberFormatException e) {
+                    /* Not a widget ID, ignore it */
+                }
+            }
+        }
+    }
+
+    /**
+     * @param context A Context to get preferences with
+     * @return The SharedPreferences the render states are persisted in
+     */
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(RENDER_STATE_PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Record the state a widget is about to be rendered with, and check how it needs rendering.
+     * Only the badge needs sending if the widget was already rendered by this app with a badge
+     *
+     * @param context     A Context to read and write preferences with
+     * @param appWidgetId The widget being rendered
+     * @param state       The text shown on the badge, STATE_HIDDEN, or STATE_NO_ACCOUNT
+     * @return RENDER_NONE if the widget already shows the state, RENDER_PARTIAL if only the badge
+     * changed, or RENDER_FULL if the whole widget needs rendering
+     */
+    static synchronized int update(Context context, int appWidgetId, String state) {
+        load(context);
+        String lastState = sStates.get(appWidgetId);
+        boolean fullRender = sFullRender.get(appWidgetId);
+        if (!fullRender && !InboxCheckerBadge.needsRender(lastState, state)) {
+            return RENDER_NONE;
+        }
+        sFullRender.delete(appWidgetId);
+        sStates.put(appWidgetId, state);
+        getPreferences(context).edit().putString(Integer.toString(appWidgetId), state).apply();
+
+        /* The error badge has its own background, so switching to or from it renders in full */
+        if (fullRender || lastState == null || STATE_NO_ACCOUNT.equals(lastState) ||
+                STATE_NO_ACCOUNT.equals(state) || STATE_ERROR.equals(lastState) ||
+                STATE_ERROR.equals(state)) {
+            return RENDER_FULL;
+        }
+        return RENDER_PARTIAL;
+    }
+
+    /**
+     * Make the next render of some widgets a full one, even if their badge didn't change. This is
+     * called when the system asks for an update, since the host may have been reset. The request
+     * is persisted, so it survives the process dying before the render
+     *
+     * @param context      A Context to read and write preferences with
+     * @param appWidgetIds The widgets to render in full
+     */
+    static synchronized void requireFullRender(Context context, int[] appWidgetIds) {
+        load(context);
+        SharedPreferences.Editor editor = null;
+        for (int appWidgetId : appWidgetIds) {
+            if (sFullRender.get(appWidgetId)) {
+                continue;
+            }
+            sFullRender.put(appWidgetId, true);
+            /* A widget which was never rendered gets a full render anyway */
+            String state = sStates.get(appWidgetId);
+            if (state != null) {
+                if (editor == null) {
+                    editor = getPreferences(context).edit();
+                }
+                editor.putString(Integer.toString(appWidgetId), FULL_RENDER_PREFIX + state);
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Forget the last rendered state of a widget, so the next refresh renders it in full. This is
+     * called when a widget is configured
+     *
+     * @param context     A Context to write preferences with
+     * @param appWidgetId The widget to forget
+     */
+    static synchronized void invalidate(Context context, int appWidgetId) {
+        load(context);
+        sStates.delete(appWidgetId);
+        sFullRender.delete(appWidgetId);
+        getPreferences(context).edit().remove(Integer.toString(appWidgetId)).apply();
+    }
+
+    /**
+     * Forget the last rendered state of every widget which isn't live
+     *
+     * @param context A Context to write preferences with
+     * @param liveIds The IDs of every widget the host has, sorted
+     */
+    static synchronized void retain(Context context, int[] liveIds) {
+        load(context);
+        SharedPreferences.Editor editor = null;
+        for (int i = sStates.size() - 1; i >= 0; i--) {
+            int appWidgetId = sStates.keyAt(i);
+            if (Arrays.binarySearch(liveIds, appWidgetId) < 0) {
+                if (editor == null) {
+                    editor = getPreferences(context).edit();
+                }
+                editor.remove(Integer.toString(appWidgetId));
+                sStates.removeAt(i);
+                sFullRender.delete(appWidgetId);
+            }
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Get the last rendered state of every widget, as persisted before the process last died.
+     * The widgets are marked stale, so the next refresh renders them even if nothing changed,
+     * including a refresh in a later process
+     *
+     * @param context A Context to read and write preferences with
+     * @return The last rendered states keyed by appWidgetId, as a copy
+     */
+    static synchronized SparseArray<String> getSnapshot(Context context) {
+        load(context);
+        int[] appWidgetIds = new int[sStates.size()];
+        for (int i = 0; i < sStates.size(); i++) {
+            appWidgetIds[i] = sStates.keyAt(i);
+        }
+        requireFullRender(context, appWidgetIds);
+        return sStates.clone();
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.Context;
+
+/**
+ * Decides how often InboxCheckerPollingAlarm polls. The alarm is a one-shot alarm, set again with
+ * a fresh interval after every poll. The process is usually killed between polls, so anything a
+ * policy learns must be persisted
+ */
+interface InboxCheckerSchedulingPolicy {
+
+    /**
+     * @param context        A Context to check the device state with
+     * @param baseIntervalMs The polling interval to start from, which depends on whether the
+     *                       labels are being observed for changes
+     * @return The time until the next poll, in milliseconds
+     */
+    long getIntervalMs(Context context, long baseIntervalMs);
+
+    /**
+     * Called after the widgets were refreshed
+     *
+     * @param context A Context to persist the policy's state with
+     * @param changed true if any widget's unread count changed, false otherwise
+     */
+    void onRefreshCompleted(Context context, boolean changed);
+
+    /**
+     * Called when the user opens their mail from a widget
+     *
+     * @param context A Context to persist the policy's state with
+     */
+    void onUserInteraction(Context context);
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Set;
+
+class InboxCheckerUnreadCache {
+
+    /* Shorter than the polling interval, so each poll sees a fresh count */
+    private static final long DEFAULT_TTL_MS = 1000 * 30;
+
+    private static final HashMap<String, Entry> sEntries = new HashMap<>();
+    private static long sTtlMs = DEFAULT_TTL_MS;
+
+    /**
+     * The unread counts of an account's labels and when they were read
+     */
+    private static class Entry {
+        final HashMap<String, Integer> unread = new HashMap<>();
+        final long timestamp;
+
+        Entry(String[] labels, int[] unread, long timestamp) {
+            for (int i = 0; i < labels.length; i++) {
+                this.unread.put(labels[i], unread[i]);
+            }
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Set how long a cached count is trusted before the provider is queried again. This is set
+     * from R.integer.unread_cache_ttl_ms when the process starts
+     *
+     * @param ttlMs The time to live, in milliseconds. 0 disables caching between cycles
+     */
+    static synchronized void setTtl(long ttlMs) {
+        sTtlMs = ttlMs;
+    }
+
+    /**
+     * Get cached unread counts for some of an account's labels
+     *
+     * @param account The account name to look up
+     * @param labels  The canonical names of the labels to look up
+     * @return The cached counts in the same order as labels, or null if any label isn't cached or
+     * the counts have expired
+     */
+    static synchronized int[] get(String account, String[] labels) {
+        Entry entry = sEntries.get(account);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.timestamp >= sTtlMs) {
+            sEntries.remove(account);
+            return null;
+        }
+        int[] unread = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            Integer count = entry.unread.get(labels[i]);
+            if (count == null) {
+                return null;
+            }
+            unread[i] = count;
+        }
+        return unread;
+    }
+
+    /**
+     * Cache freshly queried unread counts for an account, replacing any older ones
+     *
+     * @param account The account name the counts belong to
+     * @param labels  The canonical names of the labels which were queried
+     * @param unread  The number of unread conversations in each label
+     */
+    static synchronized void put(String account, String[] labels, int[] unread) {
+        sEntries.put(account, new Entry(labels, unread, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Drop the cached counts for an account, so the next refresh queries the provider
+     *
+     * @param account The account name to invalidate
+     */
+    static synchronized void invalidate(String account) {
+        sEntries.remove(account);
+    }
+
+    /**
+     * Drop all cached counts. This is called when a refresh is forced, like when the system asks
+     * for an update
+     */
+    static synchronized void invalidateAll() {
+        sEntries.clear();
+    }
+
+    /**
+     * Drop the cached counts of accounts no widget shows any more
+     *
+     * @param accounts The account names which still have widgets
+     */
+    static synchronized void retainAccounts(Set<String> accounts) {
+        sEntries.keySet().retainAll(accounts);
+    }
+}
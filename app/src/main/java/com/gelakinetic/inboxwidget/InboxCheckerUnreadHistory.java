@@ -0,0 +1,198 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.gelakinetic.inboxwidget.core.InboxCheckerHistoryBuffer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a fixed size history of the unread count each widget shows, one memory-mapped ring buffer
+ * file per distinct badge. Widgets which show the same accounts and labels share a history, so it
+ * survives widgets being moved or restored under new IDs. Every fresh count a refresh renders is
+ * recorded with a few in-place writes
+ */
+class InboxCheckerUnreadHistory {
+
+    private static final String HISTORY_DIR = "history";
+    private static final String HISTORY_SUFFIX = ".bin";
+
+    /* A day of samples at the fastest polling interval, a few days when polling backs off */
+    private static final int CAPACITY = 1440;
+
+    private static final long DAY_MS = 1000 * 60 * 60 * 24;
+
+    /* The history of each badge, keyed by InboxCheckerWidgetConfig.historyKey. Null values are
+     * badges whose file couldn't be mapped, so it isn't tried on every refresh
+     */
+    private static final HashMap<String, InboxCheckerHistoryBuffer> sBuffers = new HashMap<>();
+
+    /**
+     * Record the total unread count a widget shows. Only the first call for a badge opens its
+     * file
+     *
+     * @param context A Context to find the files directory with
+     * @param key     The widget's InboxCheckerWidgetConfig.historyKey
+     * @param count   The total unread count over the widget's accounts and labels
+     */
+    static synchronized void record(Context context, String key, int count) {
+        InboxCheckerHistoryBuffer buffer = get(context, key);
+        if (buffer != null) {
+            buffer.record(System.currentTimeMillis(), count);
+        }
+    }
+
+    /**
+     * @param context A Context to find the files directory with
+     * @param key     The history key to look up
+     * @return The badge's history, or null if it can't be mapped
+     */
+    static synchronized InboxCheckerHistoryBuffer get(Context context, String key) {
+        if (sBuffers.containsKey(key)) {
+            return sBuffers.get(key);
+        }
+        InboxCheckerHistoryBuffer buffer = null;
+        File dir = new File(context.getFilesDir(), HISTORY_DIR);
+        if (dir.isDirectory() || dir.mkdirs()) {
+            try {
+                buffer = new InboxCheckerHistoryBuffer(
+                        new File(dir, Uri.encode(key) + HISTORY_SUFFIX), CAPACITY);
+            } catch (IOException e) {
+                /* No history for this badge, the widget works without it */
+            }
+        }
+        sBuffers.put(key, buffer);
+        return buffer;
+    }
+
+    /**
+     * Open every history on disk, including those of badges which haven't been refreshed yet in
+     * this process
+     *
+     * @param context A Context to find the files directory with
+     */
+    private static void openAll(Context context) {
+        String[] names = new File(context.getFilesDir(), HISTORY_DIR).list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            String key = getKey(name);
+            if (key != null) {
+                get(context, key);
+            }
+        }
+    }
+
+    /**
+     * @param name The name of a file in the history directory
+     * @return The history key of the file, or null if it isn't a history file
+     */
+    private static String getKey(String name) {
+        if (!name.endsWith(HISTORY_SUFFIX)) {
+            return null;
+        }
+        return Uri.decode(name.substring(0, name.length() - HISTORY_SUFFIX.length()));
+    }
+
+    /**
+     * Delete every history whose key isn't in the given set
+     *
+     * @param context A Context to find the files directory with
+     * @param keys    The history keys of the widgets which are left
+     */
+    static synchronized void retainKeys(Context context, Set<String> keys) {
+        sBuffers.keySet().retainAll(keys);
+        File dir = new File(context.getFilesDir(), HISTORY_DIR);
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            String key = getKey(name);
+            if (key != null && !keys.contains(key)) {
+                /* A mapping which is still open stays valid, but nothing holds one any more */
+                new File(dir, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Print a summary of each badge's history
+     *
+     * @param context A Context to find the files directory with
+     * @param writer  The PrintWriter to print to
+     */
+    static synchronized void dump(Context context, PrintWriter writer) {
+        openAll(context);
+        long since = System.currentTimeMillis() - DAY_MS;
+        for (Map.Entry<String, InboxCheckerHistoryBuffer> entry : sBuffers.entrySet()) {
+            InboxCheckerHistoryBuffer buffer = entry.getValue();
+            if (buffer == null) {
+                continue;
+            }
+            writer.print("  history for ");
+            writer.print(entry.getKey());
+            writer.print(": samples ");
+            writer.print(buffer.size());
+            writer.print(", 24h average ");
+            writer.print(buffer.getAverage(since));
+            writer.print(", 24h max ");
+            writer.print(buffer.getMax(since));
+            writer.print(", average ms to zero ");
+            writer.println(buffer.getAverageTimeToZero());
+        }
+    }
+
+    /**
+     * @param context A Context to find the files directory with
+     * @return The same summary as dump(), as JSON keyed by history key
+     * @throws JSONException If a value can't be represented in JSON
+     */
+    static synchronized JSONObject snapshot(Context context) throws JSONException {
+        openAll(context);
+        long since = System.currentTimeMillis() - DAY_MS;
+        JSONObject snapshot = new JSONObject();
+        for (Map.Entry<String, InboxCheckerHistoryBuffer> entry : sBuffers.entrySet()) {
+            InboxCheckerHistoryBuffer buffer = entry.getValue();
+            if (buffer == null) {
+                continue;
+            }
+            JSONObject history = new JSONObject();
+            history.put("samples", buffer.size());
+            history.put("average24h", buffer.getAverage(since));
+            history.put("max24h", buffer.getMax(since));
+            history.put("averageMsToZero", buffer.getAverageTimeToZero());
+            snapshot.put(entry.getKey(), history);
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.text.TextUtils;
+
+import com.gelakinetic.inboxwidget.core.InboxCheckerBadge;
+
+/**
+ * Everything a widget was configured with. Instances are immutable, so they can be shared
+ * between threads
+ */
+class InboxCheckerWidgetConfig {
+
+    /* How a widget showing multiple labels combines their counts */
+    static final int AGGREGATION_SUM = InboxCheckerBadge.AGGREGATION_SUM;
+    static final int AGGREGATION_BREAKDOWN = InboxCheckerBadge.AGGREGATION_BREAKDOWN;
+
+    /* The names of the accounts whose labels are counted. More than one for an all accounts
+     * widget
+     */
+    final String[] accounts;
+    /* The first account name, which is the only one unless the widget shows all accounts */
+    final String account;
+    /* The canonical names of the labels which are counted. Empty for a label list widget, which
+     * shows every label
+     */
+    final String[] labels;
+    /* Either AGGREGATION_SUM or AGGREGATION_BREAKDOWN */
+    final int aggregation;
+    /* The package of the mail app the widget opens, or null to use the default */
+    final String launchPackage;
+    /* One of the InboxCheckerPowerPolicy.PROFILE_ constants */
+    final int powerProfile;
+    /* One of the InboxCheckerPowerPolicy.QUIET_HOURS_ constants */
+    final int quietHours;
+    /* Names what the badge counts, the accounts and then the labels. Widgets with the same key
+     * show the same total, so they share an unread history
+     */
+    final String historyKey;
+
+    /**
+     * @param accounts      The names of the accounts whose labels are counted, at least one
+     * @param labels        The canonical names of the labels which are counted
+     * @param aggregation   Either AGGREGATION_SUM or AGGREGATION_BREAKDOWN
+     * @param launchPackage The package of the mail app the widget opens, or null
+     * @param powerProfile  One of the InboxCheckerPowerPolicy.PROFILE_ constants
+     * @param quietHours    One of the InboxCheckerPowerPolicy.QUIET_HOURS_ constants
+     */
+    InboxCheckerWidgetConfig(String[] accounts, String[] labels, int aggregation,
+                             String launchPackage, int powerProfile, int quietHours) {
+        this.accounts = accounts;
+        this.account = accounts[0];
+        this.labels = labels;
+        this.aggregation = aggregation;
+        this.launchPackage = launchPackage;
+        this.powerProfile = powerProfile;
+        this.quietHours = quietHours;
+        this.historyKey = TextUtils.join(",", accounts) + "|" + TextUtils.join(",", labels);
+    }
+
+    /**
+     * @return true if this widget adds up several accounts, false if it shows one
+     */
+    boolean isMultiAccount() {
+        return accounts.length > 1;
+    }
+
+    /**
+     * @param accountName An account name
+     * @return true if the widget counts the account's labels, false otherwise
+     */
+    boolean hasAccount(String accountName) {
+        for (String name : accounts) {
+            if (name.equals(accountName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if this configures a label list widget, false if it configures a badge
+     */
+    boolean isLabelList() {
+        return labels.length == 0;
+    }
+}
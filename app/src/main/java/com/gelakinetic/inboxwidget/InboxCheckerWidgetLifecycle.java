@@ -0,0 +1,155 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Cleans up after widgets which are deleted or restored, for both widget providers. The cleanup
+ * runs on the refresh thread, so a refresh cycle can't write back state for a deleted widget
+ */
+class InboxCheckerWidgetLifecycle {
+
+    /**
+     * Forget everything kept for some deleted widgets, then stop polling if they were the last
+     *
+     * @param context       A Context to clean up with
+     * @param appWidgetIds  The widgets which were deleted
+     * @param pendingResult The deleted broadcast, finished once the cleanup is done
+     */
+    static void onDeleted(Context context, final int[] appWidgetIds,
+                          final BroadcastReceiver.PendingResult pendingResult) {
+        final Context appContext = context.getApplicationContext();
+        InboxCheckerRefreshCoordinator.cancel(appWidgetIds);
+        InboxCheckerRefreshCoordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int appWidgetId : appWidgetIds) {
+                        InboxCheckerWidgetRegistry.remove(appContext, appWidgetId);
+                        InboxCheckerRenderState.invalidate(appContext, appWidgetId);
+                        InboxCheckerLaunchTarget.removeClickIntent(appWidgetId);
+                    }
+                    trim(appContext);
+                    InboxCheckerPollingAlarm.onWidgetsRemoved(appContext);
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Move the state of restored widgets from their old IDs to the IDs the host gave them, then
+     * render them in full
+     *
+     * @param context       A Context to clean up and refresh with
+     * @param oldIds        The widget IDs from the backup
+     * @param newIds        The widget IDs on this device, in the same order as oldIds
+     * @param pendingResult The restored broadcast, finished once the widgets are rendered
+     */
+    static void onRestored(Context context, final int[] oldIds, final int[] newIds,
+                           BroadcastReceiver.PendingResult pendingResult) {
+        final Context appContext = context.getApplicationContext();
+        InboxCheckerRefreshCoordinator.cancel(oldIds);
+        InboxCheckerRefreshCoordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                InboxCheckerWidgetRegistry.remap(appContext, oldIds, newIds);
+                for (int appWidgetId : oldIds) {
+                    InboxCheckerRenderState.invalidate(appContext, appWidgetId);
+                    InboxCheckerLaunchTarget.removeClickIntent(appWidgetId);
+                }
+                trim(appContext);
+                InboxCheckerPollingAlarm.setAlarm(appContext);
+            }
+        });
+        /* The remapping is queued first, so the refresh sees the new IDs */
+        InboxCheckerAppWidgetProvider.refresh(appContext, newIds, true, pendingResult);
+    }
+
+    /**
+     * Drop everything kept for widgets the host no longer has, and for accounts no widget shows.
+     * This catches widgets deleted while an older version without cleanup was installed. It runs
+     * on the refresh thread
+     *
+     * @param context A Context to clean up with
+     */
+    static void trimToLiveWidgets(Context context) {
+        final Context appContext = context.getApplicationContext();
+        InboxCheckerRefreshCoordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                trim(appContext);
+            }
+        });
+    }
+
+    /**
+     * Trim every per-widget and per-account store to the widgets the host has. This must run on
+     * the refresh thread
+     *
+     * @param context A Context to clean up with
+     */
+    private static void trim(Context context) {
+        int[] liveIds = getLiveIds(context);
+        InboxCheckerWidgetRegistry.retain(context, liveIds);
+        InboxCheckerRenderState.retain(context, liveIds);
+        InboxCheckerLaunchTarget.retainClickIntents(liveIds);
+
+        HashSet<String> accounts = new HashSet<>();
+        HashSet<String> historyKeys = new HashSet<>();
+        SparseArray<InboxCheckerWidgetConfig> configs = InboxCheckerWidgetRegistry.getAll(context);
+        for (int i = 0; i < configs.size(); i++) {
+            Collections.addAll(accounts, configs.valueAt(i).accounts);
+            historyKeys.add(configs.valueAt(i).historyKey);
+        }
+        InboxCheckerUnreadCache.retainAccounts(accounts);
+        InboxCheckerLabelUriCache.retainAccounts(context, accounts);
+        InboxCheckerLabelListProvider.retainAccounts(accounts);
+        InboxCheckerCircuitBreaker.retainAccounts(context, accounts);
+        InboxCheckerUnreadHistory.retainKeys(context, historyKeys);
+    }
+
+    /**
+     * @param context A Context to look the widgets up with
+     * @return The IDs of every widget the host has for either provider, sorted
+     */
+    static int[] getLiveIds(Context context) {
+        AppWidgetManager widgetManager = AppWidgetManager.getInstance(context);
+        int[] ids = widgetManager.getAppWidgetIds(new ComponentName(context,
+                InboxCheckerAppWidgetProvider.class));
+        int[] listIds = widgetManager.getAppWidgetIds(new ComponentName(context,
+                InboxCheckerLabelListProvider.class));
+        int[] liveIds = new int[ids.length + listIds.length];
+        System.arraycopy(ids, 0, liveIds, 0, ids.length);
+        System.arraycopy(listIds, 0, liveIds, ids.length, listIds.length);
+        Arrays.sort(liveIds);
+        return liveIds;
+    }
+}
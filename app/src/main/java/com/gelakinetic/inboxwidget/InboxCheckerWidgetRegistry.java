@@ -0,0 +1,386 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.Context;
+import android.support.v4.util.AtomicFile;
+import android.util.SparseArray;
+
+import com.google.android.gm.contentprovider.GmailContract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Holds the configuration of every widget in memory. It is loaded from disk once per process, and
+ * every change is written back atomically on a background thread
+ */
+class InboxCheckerWidgetRegistry {
+
+    private static final String REGISTRY_FILE = "widgets.bin";
+    private static final int FORMAT_VERSION = 3;
+
+    /* Where each widget's account was stored before the registry existed. These are migrated
+     * once. Those widgets always counted the inbox
+     */
+    private static final String LEGACY_ACCOUNT_PREFS = "Preferences";
+
+    /* Writes happen in order, off the calling thread */
+    private static final ExecutorService sWriteExecutor = Executors.newSingleThreadExecutor();
+
+    /* Widget configurations keyed by appWidgetId. Null until loaded */
+    private static SparseArray<InboxCheckerWidgetConfig> sConfigs = null;
+
+    /* Incremented whenever a configuration changes, so callers can tell if what they built from
+     * the registry is stale
+     */
+    private static int sGeneration = 0;
+
+    /**
+     * @param context     A Context to load the registry with, if it isn't loaded yet
+     * @param appWidgetId The widget to look up
+     * @return The widget's configuration, or null if it isn't configured
+     */
+    static synchronized InboxCheckerWidgetConfig get(Context context, int appWidgetId) {
+        load(context);
+        return sConfigs.get(appWidgetId);
+    }
+
+    /**
+     * @param context A Context to load the registry with, if it isn't loaded yet
+     * @return A copy of every widget configuration, keyed by appWidgetId
+     */
+    static synchronized SparseArray<InboxCheckerWidgetConfig> getAll(Context context) {
+        load(context);
+        return sConfigs.clone();
+    }
+
+    /**
+     * @param context A Context to load the registry with, if it isn't loaded yet
+     * @param account The account to match, or null to match every configured widget
+     * @return The IDs of the configured widgets showing the account
+     */
+    static synchronized int[] getIds(Context context, String account) {
+        load(context);
+        int[] ids = new int[sConfigs.size()];
+        int count = 0;
+        for (int i = 0; i < sConfigs.size(); i++) {
+            if (account == null || sConfigs.valueAt(i).hasAccount(account)) {
+                ids[count++] = sConfigs.keyAt(i);
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * @return A number which changes whenever any widget configuration changes
+     */
+    static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * Store a widget's configuration, replacing any older one
+     *
+     * @param context     A Context to load and write the registry with
+     * @param appWidgetId The widget being configured
+     * @param config      The widget's new configuration
+     */
+    static synchronized void put(Context context, int appWidgetId,
+                                 InboxCheckerWidgetConfig config) {
+        load(context);
+        sConfigs.put(appWidgetId, config);
+        onChanged(context);
+    }
+
+    /**
+     * Forget a widget's configuration
+     *
+     * @param context     A Context to load and write the registry with
+     * @param appWidgetId The widget to forget
+     */
+    static synchronized void remove(Context context, int appWidgetId) {
+        load(context);
+        if (sConfigs.get(appWidgetId) != null) {
+            sConfigs.remove(appWidgetId);
+            onChanged(context);
+        }
+    }
+
+    /**
+     * Forget the configuration of every widget which isn't live, like widgets deleted while no
+     * cleanup ran
+     *
+     * @param context A Context to load and write the registry with
+     * @param liveIds The IDs of every widget the host has, sorted
+     */
+    static synchronized void retain(Context context, int[] liveIds) {
+        load(context);
+        boolean changed = false;
+        for (int i = sConfigs.size() - 1; i >= 0; i--) {
+            if (Arrays.binarySearch(liveIds, sConfigs.keyAt(i)) < 0) {
+                sConfigs.removeAt(i);
+                changed = true;
+            }
+        }
+        if (changed) {
+            onChanged(context);
+        }
+    }
+
+    /**
+     * Move configurations to new widget IDs, like after a restore from backup
+     *
+     * @param context A Context to load and write the registry with
+     * @param oldIds  The widget IDs the configurations are stored under
+     * @param newIds  The widget IDs to store them under, in the same order as oldIds
+     */
+    static synchronized void remap(Context context, int[] oldIds, int[] newIds) {
+        load(context);
+        SparseArray<InboxCheckerWidgetConfig> moved = new SparseArray<>();
+        for (int i = 0; i < oldIds.length && i < newIds.length; i++) {
+            InboxCheckerWidgetConfig config = sConfigs.get(oldIds[i]);
+            if (config != null) {
+                moved.put(newIds[i], config);
+                sConfigs.remove(oldIds[i]);
+            }
+        }
+        for (int i = 0; i < moved.size(); i++) {
+            sConfigs.put(moved.keyAt(i), moved.valueAt(i));
+        }
+        onChanged(context);
+    }
+
+    /**
+     * Bump the generation and write a snapshot of the registry to disk
+     *
+     * @param context A Context to write the registry with
+     */
+    private static void onChanged(Context context) {
+        sGeneration++;
+        final SparseArray<InboxCheckerWidgetConfig> snapshot = sConfigs.clone();
+        final File file = new File(context.getFilesDir(), REGISTRY_FILE);
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(file, snapshot);
+            }
+        });
+    }
+
+    /**
+     * Load the registry from disk if it isn't in memory yet. If it was never written, migrate the
+     * widgets from the old SharedPreferences
+     *
+     * @param context A Context to read files and preferences with
+     */
+    private static void load(Context context) {
+        if (sConfigs != null) {
+            return;
+        }
+
+        File file = new File(context.getFilesDir(), REGISTRY_FILE);
+        SparseArray<InboxCheckerWidgetConfig> configs = read(file);
+        if (configs == null) {
+            configs = migrate(context);
+            if (write(file, configs)) {
+                /* The registry has them now. Keeping the old entries would bring deleted widgets
+                 * back if the registry file were ever lost
+                 */
+                clearLegacyPreferences(context);
+            }
+        }
+        sConfigs = configs;
+    }
+
+    /**
+     * Read the registry file. The format is a version, a count, then for each widget its ID,
+     * accounts, labels, aggregation, optional launch package, power profile, and quiet hours. A
+     * file with a negative count, or a widget without accounts or labels, is corrupt
+     *
+     * @param file The registry file
+     * @return The widget configurations, or null if the file doesn't exist, can't be read, or is
+     * corrupt
+     */
+    private static SparseArray<InboxCheckerWidgetConfig> read(File file) {
+        AtomicFile atomicFile = new AtomicFile(file);
+        DataInputStream in = null;
+        try {
+            FileInputStream stream = atomicFile.openRead();
+            in = new DataInputStream(new BufferedInputStream(stream));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                return null;
+            }
+            /* Don't size the array from the count, a corrupt one could be huge */
+            SparseArray<InboxCheckerWidgetConfig> configs = new SparseArray<>();
+            for (int i = 0; i < count; i++) {
+                int appWidgetId = in.readInt();
+                String[] accounts = readStrings(in);
+                String[] labels = readStrings(in);
+                if (accounts == null || labels == null) {
+                    return null;
+                }
+                int aggregation = in.readByte();
+                String launchPackage = in.readBoolean() ? in.readUTF() : null;
+                int powerProfile = in.readByte();
+                int quietHours = in.readByte();
+                configs.put(appWidgetId, new InboxCheckerWidgetConfig(accounts, labels,
+                        aggregation, launchPackage, powerProfile, quietHours));
+            }
+            return configs;
+        } catch (FileNotFoundException e) {
+            /* Never written */
+            return null;
+        } catch (IOException e) {
+            /* Truncated, start over from the old preferences */
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a list of strings, written as a count byte followed by each string
+     *
+     * @param in The stream to read from
+     * @return The strings, or null if the count isn't positive
+     * @throws IOException If the stream can't be read
+     */
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int count = in.readByte();
+        if (count <= 0) {
+            return null;
+        }
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            strings[i] = in.readUTF();
+        }
+        return strings;
+    }
+
+    /**
+     * Write the registry file atomically, so a crash mid-write leaves the old file intact
+     *
+     * @param file    The registry file
+     * @param configs The widget configurations to write
+     * @return true if the file was written, false otherwise
+     */
+    private static boolean write(File file, SparseArray<InboxCheckerWidgetConfig> configs) {
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream stream = null;
+        try {
+            stream = atomicFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(configs.size());
+            for (int i = 0; i < configs.size(); i++) {
+                InboxCheckerWidgetConfig config = configs.valueAt(i);
+                out.writeInt(configs.keyAt(i));
+                out.writeByte(config.accounts.length);
+                for (String account : config.accounts) {
+                    out.writeUTF(account);
+                }
+                out.writeByte(config.labels.length);
+                for (String label : config.labels) {
+                    out.writeUTF(label);
+                }
+                out.writeByte(config.aggregation);
+                out.writeBoolean(config.launchPackage != null);
+                if (config.launchPackage != null) {
+                    out.writeUTF(config.launchPackage);
+                }
+                out.writeByte(config.powerProfile);
+                out.writeByte(config.quietHours);
+            }
+            out.flush();
+            atomicFile.finishWrite(stream);
+            return true;
+        } catch (IOException e) {
+            if (stream != null) {
+                atomicFile.failWrite(stream);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Build the registry from the SharedPreferences widgets used to be configured in. Each entry
+     * maps a widget ID to its account, and every one of those widgets counted the inbox
+     *
+     * @param context A Context to read preferences with
+     * @return The migrated widget configurations
+     */
+    private static SparseArray<InboxCheckerWidgetConfig> migrate(Context context) {
+        SparseArray<InboxCheckerWidgetConfig> configs = new SparseArray<>();
+        Map<String, ?> accounts =
+                context.getSharedPreferences(LEGACY_ACCOUNT_PREFS, Context.MODE_PRIVATE).getAll();
+        for (Map.Entry<String, ?> entry : accounts.entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+            int appWidgetId;
+            try {
+                appWidgetId = Integer.parseInt(entry.getKey());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            configs.put(appWidgetId, new InboxCheckerWidgetConfig(
+                    new String[]{(String) entry.getValue()},
+                    new String[]{GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX},
+                    InboxCheckerWidgetConfig.AGGREGATION_SUM,
+                    null,
+                    InboxCheckerPowerPolicy.PROFILE_BALANCED,
+                    InboxCheckerPowerPolicy.QUIET_HOURS_NONE));
+        }
+        return configs;
+    }
+
+    /**
+     * Empty the SharedPreferences widgets used to be configured in, once they're migrated
+     *
+     * @param context A Context to write preferences with
+     */
+    private static void clearLegacyPreferences(Context context) {
+        context.getSharedPreferences(LEGACY_ACCOUNT_PREFS, Context.MODE_PRIVATE)
+                .edit().clear().apply();
+    }
+}
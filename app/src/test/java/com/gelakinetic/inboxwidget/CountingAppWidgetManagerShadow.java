@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.appwidget.AppWidgetManager;
+import android.widget.RemoteViews;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowAppWidgetManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts every call which sends views to the host, so tests can check how many the app really
+ * makes instead of trusting its own metrics. Widgets are updated on the refresh thread, so the
+ * counts are atomic
+ */
+@Implements(AppWidgetManager.class)
+public class CountingAppWidgetManagerShadow extends ShadowAppWidgetManager {
+
+    private static final AtomicInteger sUpdates = new AtomicInteger();
+    private static final AtomicInteger sPartialUpdates = new AtomicInteger();
+
+    @Implementation
+    @Override
+    public void updateAppWidget(int appWidgetId, RemoteViews views) {
+        sUpdates.incrementAndGet();
+        super.updateAppWidget(appWidgetId, views);
+    }
+
+    @Implementation
+    @Override
+    public void updateAppWidget(int[] appWidgetIds, RemoteViews views) {
+        sUpdates.addAndGet(appWidgetIds.length);
+        super.updateAppWidget(appWidgetIds, views);
+    }
+
+    /**
+     * The host would merge these views into the ones it has, the test only needs the count
+     *
+     * @param appWidgetId The widget being updated
+     * @param views       The views to merge
+     */
+    @Implementation
+    public void partiallyUpdateAppWidget(int appWidgetId, RemoteViews views) {
+        sPartialUpdates.incrementAndGet();
+    }
+
+    /**
+     * @return The number of widgets sent full views so far
+     */
+    static int getUpdateCount() {
+        return sUpdates.get();
+    }
+
+    /**
+     * @return The number of widgets sent partial views so far
+     */
+    static int getPartialUpdateCount() {
+        return sPartialUpdates.get();
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.google.android.gm.contentprovider.GmailContract;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for Gmail's labels provider, for tests. It serves the GmailContract.Labels columns
+ * for any account, so the widget can be exercised end to end under Robolectric without Gmail.
+ * Register it under Gmail's authority with Robolectric.buildContentProvider(), then configure
+ * accounts, labels, latency and failures with provider.call("configure", json, null), where the
+ * JSON looks like:
+ * <p/>
+ * {"latencyMs": 250, "failureRate": 0.1, "failureMode": "null",
+ * "accounts": {"me@example.com": {"labels": {"^i": 4, "^t": 1}, "userLabels": 500}}}
+ * <p/>
+ * failureMode is either "null", which returns a null Cursor, or "security", which throws a
+ * SecurityException like a revoked permission would. Accounts which aren't configured get an
+ * inbox with no unread mail. Every configure call notifies observers of every account. Queries
+ * are counted, so tests can check how many IPCs a refresh would cost
+ */
+public class FakeGmailLabelsProvider extends ContentProvider {
+
+    private static final String METHOD_CONFIGURE = "configure";
+    private static final String FAILURE_MODE_SECURITY = "security";
+    private static final String LABELS_SEGMENT = "labels";
+    private static final String LABEL_SEGMENT = "label";
+
+    private static final String[] ALL_COLUMNS = {
+            GmailContract.Labels.CANONICAL_NAME,
+            GmailContract.Labels.NAME,
+            GmailContract.Labels.NUM_CONVERSATIONS,
+            GmailContract.Labels.NUM_UNREAD_CONVERSATIONS,
+            GmailContract.Labels.TEXT_COLOR,
+            GmailContract.Labels.BACKGROUND_COLOR,
+            GmailContract.Labels.URI
+    };
+
+    private final Random mRandom = new Random();
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+
+    /* Unread counts keyed by account, then canonical name, in the order rows are served */
+    private final HashMap<String, LinkedHashMap<String, Integer>> mAccounts = new HashMap<>();
+    private long mLatencyMs = 0;
+    private double mFailureRate = 0;
+    private boolean mThrowOnFailure = false;
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    /**
+     * Serve either the whole label list of an account, or the single label a label URI points at
+     *
+     * @param uri           content://com.google.android.gm/[account]/labels or
+     *                      content://com.google.android.gm/[account]/label/[canonical name]
+     * @param projection    The columns to return, or null for all of them
+     * @param selection     Ignored, like the real provider may
+     * @param selectionArgs Ignored
+     * @param sortOrder     Ignored
+     * @return A Cursor of label rows, or null to simulate a failure
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        mQueryCount.incrementAndGet();
+
+        LinkedHashMap<String, Integer> labels;
+        long latencyMs;
+        boolean fail;
+        boolean throwOnFailure;
+        synchronized (this) {
+            latencyMs = mLatencyMs;
+            fail = mRandom.nextDouble() < mFailureRate;
+            throwOnFailure = mThrowOnFailure;
+        }
+
+        /* Act like a slow provider */
+        if (latencyMs > 0) {
+            SystemClock.sleep(latencyMs);
+        }
+
+        /* Act like a broken provider */
+        if (fail) {
+            if (throwOnFailure) {
+                throw new SecurityException("Simulated permission failure");
+            }
+            return null;
+        }
+
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2) {
+            return null;
+        }
+        String account = segments.get(0);
+        synchronized (this) {
+            labels = new LinkedHashMap<>(getLabels(account));
+        }
+
+        String[] columns = (projection != null) ? projection : ALL_COLUMNS;
+        MatrixCursor cursor = new MatrixCursor(columns);
+        if (LABEL_SEGMENT.equals(segments.get(1)) && segments.size() > 2) {
+            /* A single label */
+            Integer unread = labels.get(segments.get(2));
+            if (unread != null) {
+                cursor.addRow(buildRow(columns, account, segments.get(2), unread));
+            }
+        } else if (LABELS_SEGMENT.equals(segments.get(1))) {
+            /* Every label */
+            for (Map.Entry<String, Integer> label : labels.entrySet()) {
+                cursor.addRow(buildRow(columns, account, label.getKey(), label.getValue()));
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * @return The number of queries made since the provider was created, including failed ones
+     */
+    int getQueryCount() {
+        return mQueryCount.get();
+    }
+
+    /**
+     * Handle "configure" calls, see the class documentation for the format
+     *
+     * @param method The method name, only METHOD_CONFIGURE is supported
+     * @param arg    The JSON configuration
+     * @param extras Ignored
+     * @return null
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_CONFIGURE.equals(method) || arg == null) {
+            return null;
+        }
+        try {
+            JSONObject config = new JSONObject(arg);
+            synchronized (this) {
+                mLatencyMs = config.optLong("latencyMs", mLatencyMs);
+                mFailureRate = config.optDouble("failureRate", mFailureRate);
+                mThrowOnFailure = FAILURE_MODE_SECURITY.equals(config.optString("failureMode"));
+
+                JSONObject accounts = config.optJSONObject("accounts");
+                if (accounts != null) {
+                    Iterator<String> names = accounts.keys();
+                    while (names.hasNext()) {
+                        String name = names.next();
+                        mAccounts.put(name, parseAccount(accounts.getJSONObject(name)));
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+
+        /* Let observers know the counts may have changed */
+        if (getContext() != null) {
+            synchronized (this) {
+                for (String account : mAccounts.keySet()) {
+                    getContext().getContentResolver().notifyChange(
+                            GmailContract.Labels.getLabelsUri(account), null);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param account The account to look up
+     * @return The account's labels, or an inbox with no unread mail if it isn't configured
+     */
+    private LinkedHashMap<String, Integer> getLabels(String account) {
+        LinkedHashMap<String, Integer> labels = mAccounts.get(account);
+        if (labels == null) {
+            labels = new LinkedHashMap<>();
+            labels.put(GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX, 0);
+        }
+        return labels;
+    }
+
+    /**
+     * Build an account's label table from its JSON configuration. User labels come first, so
+     * scans for system labels see the worst case
+     *
+     * @param account The JSON configuration of one account
+     * @return Unread counts keyed by canonical name
+     * @throws JSONException If the configuration is malformed
+     */
+    private static LinkedHashMap<String, Integer> parseAccount(JSONObject account)
+            throws JSONException {
+        LinkedHashMap<String, Integer> labels = new LinkedHashMap<>();
+        int userLabels = account.optInt("userLabels", 0);
+        for (int i = 0; i < userLabels; i++) {
+            labels.put("Label_" + i, i % 3);
+        }
+        JSONObject systemLabels = account.optJSONObject("labels");
+        if (systemLabels != null) {
+            Iterator<String> names = systemLabels.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                labels.put(name, systemLabels.getInt(name));
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * @param columns       The columns to fill, in order
+     * @param account       The account the label belongs to
+     * @param canonicalName The label's canonical name
+     * @param unread        The label's unread count
+     * @return The values of a row for the given columns
+     */
+    private static Object[] buildRow(String[] columns, String account, String canonicalName,
+                                     int unread) {
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            switch (columns[i]) {
+                case GmailContract.Labels.CANONICAL_NAME:
+                case GmailContract.Labels.NAME:
+                    row[i] = canonicalName;
+                    break;
+                case GmailContract.Labels.NUM_CONVERSATIONS:
+                    row[i] = unread * 2;
+                    break;
+                case GmailContract.Labels.NUM_UNREAD_CONVERSATIONS:
+                    row[i] = unread;
+                    break;
+                case GmailContract.Labels.TEXT_COLOR:
+                    row[i] = 0xff000000;
+                    break;
+                case GmailContract.Labels.BACKGROUND_COLOR:
+                    row[i] = 0xffffffff;
+                    break;
+                case GmailContract.Labels.URI:
+                    row[i] = "content://com.google.android.gm/" + account + "/" + LABEL_SEGMENT
+                            + "/" + Uri.encode(canonicalName);
+                    break;
+                default:
+                    row[i] = null;
+                    break;
+            }
+        }
+        return row;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return GmailContract.Labels.CONTENT_TYPE;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Labels are read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Labels are read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Labels are read only");
+    }
+}
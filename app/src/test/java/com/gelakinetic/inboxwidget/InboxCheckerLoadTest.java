@@ -0,0 +1,211 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+
+import com.google.android.gm.contentprovider.GmailContract;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Drives a refresh of many badge widgets over many accounts against the fake labels provider,
+ * and checks the cycle stays within its budget of IPCs, widget updates and time. Queries and
+ * widget updates are counted where they reach the provider and the AppWidgetManager
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25,
+        shadows = CountingAppWidgetManagerShadow.class)
+public class InboxCheckerLoadTest {
+
+    private static final String GMAIL_AUTHORITY = "com.google.android.gm";
+
+    private static final int ACCOUNTS = 10;
+    private static final int WIDGETS_PER_ACCOUNT = 6;
+    private static final int WIDGETS = ACCOUNTS * WIDGETS_PER_ACCOUNT;
+
+    /* Enough user labels that a scan which ignores the selection would show up in the time */
+    private static final int USER_LABELS = 300;
+    private static final int LATENCY_MS = 50;
+
+    /* One query per account, no matter how many widgets share it */
+    private static final int MAX_QUERIES = ACCOUNTS;
+    /* onUpdate renders every widget in full, exactly once */
+    private static final int UPDATES = WIDGETS;
+    /* Well under ACCOUNT_TIMEOUT_MS, so no account is abandoned */
+    private static final long MAX_CYCLE_MS = 2000;
+
+    /* How long to wait for a cycle, including the debounce window */
+    private static final long CYCLE_WAIT_MS = 1000 * 10;
+
+    private Context mContext;
+    private AppWidgetManager mAppWidgetManager;
+    private FakeGmailLabelsProvider mProvider;
+    private int[] mAppWidgetIds;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mAppWidgetManager = AppWidgetManager.getInstance(mContext);
+
+        mProvider = Robolectric.buildContentProvider(FakeGmailLabelsProvider.class)
+                .create(GMAIL_AUTHORITY).get();
+        JSONObject accounts = new JSONObject();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            JSONObject labels = new JSONObject();
+            labels.put(GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX, i);
+            labels.put(GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_STARRED, 1);
+            JSONObject account = new JSONObject();
+            account.put("labels", labels);
+            account.put("userLabels", USER_LABELS);
+            accounts.put(getAccount(i), account);
+        }
+        JSONObject config = new JSONObject();
+        config.put("latencyMs", LATENCY_MS);
+        config.put("accounts", accounts);
+        mProvider.call("configure", config.toString(), null);
+
+        /* Adding the widgets runs a first cycle, like a host adding them would. Configure them
+         * before it starts, and let it finish so the test measures a steady cycle
+         */
+        mAppWidgetIds = shadowOf(mAppWidgetManager).createWidgets(
+                InboxCheckerAppWidgetProvider.class, R.layout.inbox_widget, WIDGETS);
+        for (int i = 0; i < WIDGETS; i++) {
+            InboxCheckerWidgetRegistry.put(mContext, mAppWidgetIds[i], getConfig(i));
+        }
+        awaitCycle(0);
+    }
+
+    @Test
+    public void onUpdateStaysWithinBudget() throws Exception {
+        int queriesBefore = mProvider.getQueryCount();
+        long cyclesBefore = getCounter("cycles");
+        int updatesBefore = getUpdateCount();
+
+        new InboxCheckerAppWidgetProvider().onUpdate(mContext, mAppWidgetManager,
+                mAppWidgetIds);
+        awaitCycle(cyclesBefore);
+
+        int queries = mProvider.getQueryCount() - queriesBefore;
+        int updates = getUpdateCount() - updatesBefore;
+        long cycleMs = InboxCheckerMetrics.snapshot().getJSONObject("cycleMs").getLong("max");
+
+        assertTrue("Queried " + queries + " times", queries <= MAX_QUERIES);
+        assertEquals("Widget updates sent", UPDATES, updates);
+        assertTrue("A cycle took " + cycleMs + " ms", cycleMs <= MAX_CYCLE_MS);
+    }
+
+    /**
+     * Wait for a refresh cycle to start and finish
+     *
+     * @param cyclesBefore The number of cycles run before the one being waited for
+     * @throws Exception If the cycle doesn't finish in time
+     */
+    private static void awaitCycle(long cyclesBefore) throws Exception {
+        long giveUp = System.currentTimeMillis() + CYCLE_WAIT_MS;
+        while (getCounter("cycles") == cyclesBefore) {
+            assertTrue("No refresh cycle ran", System.currentTimeMillis() < giveUp);
+            Thread.sleep(10);
+        }
+
+        /* Cycles run one at a time, so this runs once the cycle is done */
+        final CountDownLatch done = new CountDownLatch(1);
+        InboxCheckerRefreshCoordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue("The refresh cycle didn't finish",
+                done.await(CYCLE_WAIT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @return The number of full and partial widget updates sent to the AppWidgetManager so far
+     */
+    private static int getUpdateCount() {
+        return CountingAppWidgetManagerShadow.getUpdateCount() +
+                CountingAppWidgetManagerShadow.getPartialUpdateCount();
+    }
+
+    /**
+     * @param name The name of a counter in the metrics snapshot
+     * @return The counter's value
+     * @throws JSONException If the snapshot can't be built
+     */
+    private static long getCounter(String name) throws JSONException {
+        return InboxCheckerMetrics.snapshot().getLong(name);
+    }
+
+    /**
+     * @param index The index of an account
+     * @return The account's name
+     */
+    private static String getAccount(int index) {
+        return "user" + index + "@example.com";
+    }
+
+    /**
+     * Spread the widgets over the accounts, with a mix of labels so each account is asked for
+     * several labels at once
+     *
+     * @param index The index of a widget
+     * @return The widget's configuration
+     */
+    private static InboxCheckerWidgetConfig getConfig(int index) {
+        String[] labels;
+        int aggregation = InboxCheckerWidgetConfig.AGGREGATION_SUM;
+        switch ((index / ACCOUNTS) % 3) {
+            case 0:
+                labels = new String[]{
+                        GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX};
+                break;
+            case 1:
+                labels = new String[]{
+                        GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_STARRED};
+                break;
+            default:
+                labels = new String[]{
+                        GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_INBOX,
+                        GmailContract.Labels.LabelCanonicalNames.CANONICAL_NAME_STARRED};
+                aggregation = InboxCheckerWidgetConfig.AGGREGATION_BREAKDOWN;
+                break;
+        }
+        return new InboxCheckerWidgetConfig(new String[]{getAccount(index % ACCOUNTS)}, labels,
+                aggregation, null, InboxCheckerPowerPolicy.PROFILE_BALANCED,
+                InboxCheckerPowerPolicy.QUIET_HOURS_NONE);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.benchmark;
+
+import com.gelakinetic.inboxwidget.core.InboxCheckerBadge;
+import com.gelakinetic.inboxwidget.core.InboxCheckerLabelScanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the label scan and badge decision which run for every account on every refresh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LabelScanBenchmark {
+
+    private static final String INBOX = "^i";
+    private static final String[] MULTI_LABELS = {
+            "^i", "^iim", "^t", "^sq_ig_i_personal", "^sq_ig_i_social"
+    };
+    private static final String[] INBOX_ONLY = {INBOX};
+
+    /* The number of labels on the synthetic account */
+    @Param({"10", "100", "1000", "10000"})
+    public int rows;
+
+    private SyntheticLabelRows mInboxTable;
+    private SyntheticLabelRows mMultiTable;
+    private int[] mUnread;
+    private String mLastState;
+
+    @Setup
+    public void setUp() {
+        mInboxTable = new SyntheticLabelRows(rows, INBOX_ONLY);
+        mMultiTable = new SyntheticLabelRows(rows, MULTI_LABELS);
+        mUnread = new int[MULTI_LABELS.length];
+        mLastState = "3";
+    }
+
+    /**
+     * Scan for the inbox alone, as a default widget does
+     *
+     * @return The rows scanned, so the work can't be eliminated
+     */
+    @Benchmark
+    public int scanInbox() {
+        mInboxTable.reset();
+        return InboxCheckerLabelScanner.scan(mInboxTable, SyntheticLabelRows.NAME_COLUMN,
+                SyntheticLabelRows.UNREAD_COLUMN, INBOX_ONLY, mUnread);
+    }
+
+    /**
+     * Scan for five labels at once, as a multi-label widget does
+     *
+     * @return The rows scanned, so the work can't be eliminated
+     */
+    @Benchmark
+    public int scanMultiLabel() {
+        mMultiTable.reset();
+        return InboxCheckerLabelScanner.scan(mMultiTable, SyntheticLabelRows.NAME_COLUMN,
+                SyntheticLabelRows.UNREAD_COLUMN, MULTI_LABELS, mUnread);
+    }
+
+    /**
+     * Scan for five labels, then decide the badge text and whether it needs rendering
+     *
+     * @return Whether the widget would be rendered, so the work can't be eliminated
+     */
+    @Benchmark
+    public boolean scanAndRender() {
+        mMultiTable.reset();
+        InboxCheckerLabelScanner.scan(mMultiTable, SyntheticLabelRows.NAME_COLUMN,
+                SyntheticLabelRows.UNREAD_COLUMN, MULTI_LABELS, mUnread);
+        String state = InboxCheckerBadge.getText(MULTI_LABELS, mUnread, MULTI_LABELS,
+                InboxCheckerBadge.AGGREGATION_BREAKDOWN);
+        return InboxCheckerBadge.needsRender(mLastState, state);
+    }
+}
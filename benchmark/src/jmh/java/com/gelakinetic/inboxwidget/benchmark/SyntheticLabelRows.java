@@ -0,0 +1,78 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.benchmark;
+
+import com.gelakinetic.inboxwidget.core.InboxCheckerLabelRows;
+
+/**
+ * An in-memory label table, shaped like the two-column projection the app queries. Names are kept
+ * as characters and copied into a new String on every getString(), like a Cursor backed by a
+ * CursorWindow does, so allocations per scan include the strings a real scan allocates
+ */
+class SyntheticLabelRows implements InboxCheckerLabelRows {
+
+    static final int NAME_COLUMN = 0;
+    static final int UNREAD_COLUMN = 1;
+
+    private final char[][] mNames;
+    private final int[] mUnread;
+    private int mPosition = -1;
+
+    /**
+     * Build a table of user labels, with the given system labels at the end, which is the worst
+     * case for a scan
+     *
+     * @param rows         The total number of rows
+     * @param systemLabels The canonical names of the system labels to put at the end
+     */
+    SyntheticLabelRows(int rows, String[] systemLabels) {
+        mNames = new char[rows][];
+        mUnread = new int[rows];
+        int userLabels = Math.max(0, rows - systemLabels.length);
+        for (int i = 0; i < rows; i++) {
+            mNames[i] = ((i < userLabels)
+                    ? "Label_" + i
+                    : systemLabels[i - userLabels]).toCharArray();
+            mUnread[i] = i % 7;
+        }
+    }
+
+    /**
+     * Rewind to before the first row, so the table can be scanned again
+     */
+    void reset() {
+        mPosition = -1;
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return ++mPosition < mNames.length;
+    }
+
+    @Override
+    public String getString(int column) {
+        return new String(mNames[mPosition]);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mUnread[mPosition];
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.core;
+
+/**
+ * Decides what a widget's badge shows, and whether that needs a new render
+ */
+public final class InboxCheckerBadge {
+
+    /* How a widget showing multiple labels combines their counts */
+    public static final int AGGREGATION_SUM = 0;
+    public static final int AGGREGATION_BREAKDOWN = 1;
+
+    /* The badge is hidden because there is no unread mail. Any other state is the badge text */
+    public static final String STATE_HIDDEN = "";
+    /* The widget has no account, so the badge was left alone */
+    public static final String STATE_NO_ACCOUNT = "?";
+    /* The widget's accounts keep failing to be read, so no count can be trusted */
+    public static final String STATE_ERROR = "!";
+
+    /* An account's count which isn't known, because its query failed or timed out */
+    public static final int UNKNOWN_COUNT = -1;
+
+    private InboxCheckerBadge() {
+    }
+
+    /**
+     * Build the badge text for a widget from its account's unread counts
+     *
+     * @param queried     The labels which were queried for the widget's account
+     * @param unread      The unread counts, in the same order as queried
+     * @param labels      The labels this widget shows
+     * @param aggregation How the widget combines counts, either AGGREGATION_SUM or
+     *                    AGGREGATION_BREAKDOWN
+     * @return The text to show on the badge, or STATE_HIDDEN if there is no unread mail
+     */
+    public static String getText(String[] queried, int[] unread, String[] labels,
+                                 int aggregation) {
+        /* Sum first, so the common case of no unread mail builds no strings */
+        int total = getTotal(queried, unread, labels);
+
+        if (total <= 0) {
+            return STATE_HIDDEN;
+        } else if (aggregation != AGGREGATION_BREAKDOWN || labels.length == 1) {
+            return Integer.toString(total);
+        }
+
+        StringBuilder breakdown = new StringBuilder();
+        for (String label : labels) {
+            if (breakdown.length() > 0) {
+                breakdown.append('/');
+            }
+            breakdown.append(getCount(queried, unread, label));
+        }
+        return breakdown.toString();
+    }
+
+    /**
+     * Build the badge text for a widget which shows several accounts
+     *
+     * @param totals      Each account's total unread count over the widget's labels, or
+     *                    UNKNOWN_COUNT if the account didn't answer in time
+     * @param aggregation How the widget combines counts. AGGREGATION_BREAKDOWN shows one count per
+     *                    account
+     * @return The text to show on the badge, or STATE_HIDDEN if no account has unread mail
+     */
+    public static String getAccountsText(int[] totals, int aggregation) {
+        /* Sum what's known. Accounts which didn't answer are left out, not counted as zero */
+        int total = 0;
+        for (int count : totals) {
+            if (count != UNKNOWN_COUNT) {
+                total += count;
+            }
+        }
+
+        if (total <= 0) {
+            return STATE_HIDDEN;
+        } else if (aggregation != AGGREGATION_BREAKDOWN || totals.length == 1) {
+            return Integer.toString(total);
+        }
+
+        StringBuilder breakdown = new StringBuilder();
+        for (int count : totals) {
+            if (breakdown.length() > 0) {
+                breakdown.append('/');
+            }
+            if (count == UNKNOWN_COUNT) {
+                breakdown.append(STATE_NO_ACCOUNT);
+            } else {
+                breakdown.append(count);
+            }
+        }
+        return breakdown.toString();
+    }
+
+    /**
+     * @param queried The labels which were queried
+     * @param unread  The unread counts, in the same order as queried
+     * @param labels  The labels to add up
+     * @return The total unread count of the labels
+     */
+    public static int getTotal(String[] queried, int[] unread, String[] labels) {
+        int total = 0;
+        for (String label : labels) {
+            total += getCount(queried, unread, label);
+        }
+        return total;
+    }
+
+    /**
+     * @param lastState The state the widget was last rendered with, or null if never rendered
+     * @param newState  The state the widget would be rendered with now
+     * @return true if the widget needs to be rendered, false if it already shows newState
+     */
+    public static boolean needsRender(String lastState, String newState) {
+        return !newState.equals(lastState);
+    }
+
+    /**
+     * @param queried The labels which were queried
+     * @param unread  The unread counts, in the same order as queried
+     * @param label   The label to look up
+     * @return The label's unread count, or zero if it wasn't queried
+     */
+    private static int getCount(String[] queried, int[] unread, String label) {
+        for (int i = 0; i < queried.length; i++) {
+            if (queried[i].equals(label)) {
+                return unread[i];
+            }
+        }
+        return 0;
+    }
+}
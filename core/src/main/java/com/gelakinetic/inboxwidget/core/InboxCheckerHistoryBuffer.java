@@ -0,0 +1,210 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A fixed size ring buffer of (timestamp, unread count) samples, kept in a memory-mapped file.
+ * Recording a sample is a few in-place writes to the mapping, with no serialization and no
+ * allocation. When the buffer is full, the oldest sample is overwritten. Methods are synchronized,
+ * so samples can be recorded and queried from different threads
+ */
+public final class InboxCheckerHistoryBuffer {
+
+    private static final int MAGIC = 0x49574831;
+
+    /* The header is the magic number, the capacity, the next slot to write, and the sample count */
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_CAPACITY = 4;
+    private static final int OFFSET_HEAD = 8;
+    private static final int OFFSET_SIZE = 12;
+    private static final int HEADER_BYTES = 16;
+
+    /* Each slot is a long timestamp followed by an int count */
+    private static final int SLOT_BYTES = 12;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+
+    /**
+     * Map a history file, creating it if it doesn't exist. If it holds a different capacity, isn't
+     * a history file, or its header is corrupt, it's cleared
+     *
+     * @param file     The file to map
+     * @param capacity The number of samples to keep
+     * @throws IOException If the file can't be created or mapped
+     */
+    public InboxCheckerHistoryBuffer(File file, int capacity) throws IOException {
+        mCapacity = capacity;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            /* The mapping stays valid after the file is closed */
+            mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) capacity * SLOT_BYTES);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        /* A head or size out of range would index outside the slots */
+        int head = mBuffer.getInt(OFFSET_HEAD);
+        int size = mBuffer.getInt(OFFSET_SIZE);
+        if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC ||
+                mBuffer.getInt(OFFSET_CAPACITY) != capacity ||
+                head < 0 || head >= capacity || size < 0 || size > capacity) {
+            mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+            mBuffer.putInt(OFFSET_CAPACITY, capacity);
+            mBuffer.putInt(OFFSET_HEAD, 0);
+            mBuffer.putInt(OFFSET_SIZE, 0);
+        }
+    }
+
+    /**
+     * Record a sample, overwriting the oldest one if the buffer is full. Nothing is allocated
+     *
+     * @param timestamp When the count was read, in milliseconds since the epoch
+     * @param count     The unread count
+     */
+    public synchronized void record(long timestamp, int count) {
+        int head = mBuffer.getInt(OFFSET_HEAD);
+        int offset = HEADER_BYTES + head * SLOT_BYTES;
+        mBuffer.putLong(offset, timestamp);
+        mBuffer.putInt(offset + 8, count);
+
+        /* Write the sample before moving the head, so a crash never exposes a torn slot */
+        mBuffer.putInt(OFFSET_HEAD, (head + 1) % mCapacity);
+        int size = mBuffer.getInt(OFFSET_SIZE);
+        if (size < mCapacity) {
+            mBuffer.putInt(OFFSET_SIZE, size + 1);
+        }
+    }
+
+    /**
+     * @return The number of samples held
+     */
+    public synchronized int size() {
+        return mBuffer.getInt(OFFSET_SIZE);
+    }
+
+    /**
+     * Copy the samples into caller owned arrays, oldest first, so nothing is allocated
+     *
+     * @param timestamps Filled with the sample timestamps
+     * @param counts     Filled with the sample counts
+     * @return The number of samples copied, which is limited by the shorter array
+     */
+    public synchronized int copy(long[] timestamps, int[] counts) {
+        int size = mBuffer.getInt(OFFSET_SIZE);
+        int copied = Math.min(size, Math.min(timestamps.length, counts.length));
+        int first = oldest(size);
+        /* Copy the newest samples if the arrays are too short for all of them */
+        int skip = size - copied;
+        for (int i = 0; i < copied; i++) {
+            int offset = slotOffset(first + skip + i);
+            timestamps[i] = mBuffer.getLong(offset);
+            counts[i] = mBuffer.getInt(offset + 8);
+        }
+        return copied;
+    }
+
+    /**
+     * @param since The earliest timestamp to include, in milliseconds since the epoch
+     * @return The average unread count of the samples since then, or 0 if there are none
+     */
+    public synchronized float getAverage(long since) {
+        int size = mBuffer.getInt(OFFSET_SIZE);
+        int first = oldest(size);
+        long sum = 0;
+        int samples = 0;
+        for (int i = 0; i < size; i++) {
+            int offset = slotOffset(first + i);
+            if (mBuffer.getLong(offset) >= since) {
+                sum += mBuffer.getInt(offset + 8);
+                samples++;
+            }
+        }
+        return samples == 0 ? 0 : (float) sum / samples;
+    }
+
+    /**
+     * @param since The earliest timestamp to include, in milliseconds since the epoch
+     * @return The highest unread count of the samples since then, or 0 if there are none
+     */
+    public synchronized int getMax(long since) {
+        int size = mBuffer.getInt(OFFSET_SIZE);
+        int first = oldest(size);
+        int max = 0;
+        for (int i = 0; i < size; i++) {
+            int offset = slotOffset(first + i);
+            if (mBuffer.getLong(offset) >= since) {
+                max = Math.max(max, mBuffer.getInt(offset + 8));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Measure how long unread mail sits before the count gets back to zero. Each run of non-zero
+     * samples which ends in a zero counts once, from its first sample to the zero
+     *
+     * @return The average time to zero in milliseconds, or -1 if the count never got to zero
+     */
+    public synchronized long getAverageTimeToZero() {
+        int size = mBuffer.getInt(OFFSET_SIZE);
+        int first = oldest(size);
+        long total = 0;
+        int runs = 0;
+        long runStart = -1;
+        for (int i = 0; i < size; i++) {
+            int offset = slotOffset(first + i);
+            long timestamp = mBuffer.getLong(offset);
+            if (mBuffer.getInt(offset + 8) > 0) {
+                if (runStart < 0) {
+                    runStart = timestamp;
+                }
+            } else if (runStart >= 0) {
+                total += timestamp - runStart;
+                runs++;
+                runStart = -1;
+            }
+        }
+        return runs == 0 ? -1 : total / runs;
+    }
+
+    /**
+     * @param size The number of samples held
+     * @return The logical index of the oldest sample
+     */
+    private int oldest(int size) {
+        return (mBuffer.getInt(OFFSET_HEAD) - size + mCapacity) % mCapacity;
+    }
+
+    /**
+     * @param index A logical index, which may be past the end of the ring
+     * @return The byte offset of the slot
+     */
+    private int slotOffset(int index) {
+        return HEADER_BYTES + (index % mCapacity) * SLOT_BYTES;
+    }
+}
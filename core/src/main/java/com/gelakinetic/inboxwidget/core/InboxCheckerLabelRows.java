@@ -0,0 +1,46 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.core;
+
+/**
+ * A forward-only view of label rows. The app implements this over a labels Cursor, and the
+ * benchmarks implement it over synthetic tables, so the scan logic doesn't depend on Android
+ */
+public interface InboxCheckerLabelRows {
+
+    /**
+     * Move to the next row
+     *
+     * @return true if there is a next row, false if the rows are exhausted
+     */
+    boolean moveToNext();
+
+    /**
+     * @param column The index of a column
+     * @return The value of the column in the current row, as a String
+     */
+    String getString(int column);
+
+    /**
+     * @param column The index of a column
+     * @return The value of the column in the current row, as an int
+     */
+    int getInt(int column);
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.core;
+
+/**
+ * Extracts unread counts from label rows
+ */
+public final class InboxCheckerLabelScanner {
+
+    private InboxCheckerLabelScanner() {
+    }
+
+    /**
+     * Read the unread counts of the given labels in a single pass over the rows. The scan stops
+     * once every label is found. Rows for other labels are skipped, in case the source ignored
+     * the selection. Nothing is allocated
+     *
+     * @param rows         The label rows to scan
+     * @param nameColumn   The index of the canonical name column
+     * @param unreadColumn The index of the unread conversations column
+     * @param labels       The canonical names of the labels to count
+     * @param unread       Filled with the unread count of each label, in the same order as labels.
+     *                     Labels which aren't found are left as they were
+     * @return The number of rows scanned
+     */
+    public static int scan(InboxCheckerLabelRows rows, int nameColumn, int unreadColumn,
+                           String[] labels, int[] unread) {
+        return scan(rows, nameColumn, unreadColumn, -1, labels, unread, null);
+    }
+
+    /**
+     * Read the unread counts of the given labels in a single pass over the rows, and each label's
+     * direct URI along with it
+     *
+     * @param rows         The label rows to scan
+     * @param nameColumn   The index of the canonical name column
+     * @param unreadColumn The index of the unread conversations column
+     * @param uriColumn    The index of the label URI column, or -1 to skip reading URIs
+     * @param labels       The canonical names of the labels to count
+     * @param unread       Filled with the unread count of each label, in the same order as labels.
+     *                     Labels which aren't found are left as they were
+     * @param uris         Filled with the URI of each label, in the same order as labels, or null.
+     *                     Labels which aren't found are left as they were
+     * @return The number of rows scanned
+     */
+    public static int scan(InboxCheckerLabelRows rows, int nameColumn, int unreadColumn,
+                           int uriColumn, String[] labels, int[] unread, String[] uris) {
+        int scanned = 0;
+        int found = 0;
+        while (found < labels.length && rows.moveToNext()) {
+            scanned++;
+            String name = rows.getString(nameColumn);
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i].equals(name)) {
+                    unread[i] = rows.getInt(unreadColumn);
+                    if (uris != null && uriColumn != -1) {
+                        uris[i] = rows.getString(uriColumn);
+                    }
+                    found++;
+                    break;
+                }
+            }
+        }
+        return scanned;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.core;
+
+/**
+ * Time of day math for quiet hours, which are a window of minutes since midnight. A window whose
+ * end is earlier than its start spans midnight
+ */
+public final class InboxCheckerQuietHours {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    private InboxCheckerQuietHours() {
+    }
+
+    /**
+     * @param start       The start of the window, in minutes since midnight, inclusive
+     * @param end         The end of the window, in minutes since midnight, exclusive
+     * @param minuteOfDay The current time, in minutes since midnight
+     * @return true if the time is inside the window, false otherwise
+     */
+    public static boolean isInside(int start, int end, int minuteOfDay) {
+        return (start <= end)
+                ? (minuteOfDay >= start && minuteOfDay < end)
+                : (minuteOfDay >= start || minuteOfDay < end);
+    }
+
+    /**
+     * @param start       The start of the window, in minutes since midnight, inclusive
+     * @param end         The end of the window, in minutes since midnight, exclusive
+     * @param minuteOfDay The current time, in minutes since midnight
+     * @return The minutes left in the window, or 0 if the time is outside it
+     */
+    public static int getMinutesUntilEnd(int start, int end, int minuteOfDay) {
+        if (!isInside(start, end, minuteOfDay)) {
+            return 0;
+        }
+        return (end - minuteOfDay + MINUTES_PER_DAY) % MINUTES_PER_DAY;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InboxCheckerBadgeTest {
+
+    private static final String[] QUERIED = {"^i", "^t", "Work"};
+    private static final int[] UNREAD = {3, 0, 5};
+
+    @Test
+    public void getTextSumsLabels() {
+        assertEquals("8", InboxCheckerBadge.getText(QUERIED, UNREAD, new String[]{"^i", "Work"},
+                InboxCheckerBadge.AGGREGATION_SUM));
+    }
+
+    @Test
+    public void getTextBreaksDownLabels() {
+        assertEquals("3/0/5", InboxCheckerBadge.getText(QUERIED, UNREAD, QUERIED,
+                InboxCheckerBadge.AGGREGATION_BREAKDOWN));
+    }
+
+    @Test
+    public void getTextDoesNotBreakDownOneLabel() {
+        assertEquals("5", InboxCheckerBadge.getText(QUERIED, UNREAD, new String[]{"Work"},
+                InboxCheckerBadge.AGGREGATION_BREAKDOWN));
+    }
+
+    @Test
+    public void getTextHidesWithoutUnreadMail() {
+        assertEquals(InboxCheckerBadge.STATE_HIDDEN, InboxCheckerBadge.getText(QUERIED, UNREAD,
+                new String[]{"^t"}, InboxCheckerBadge.AGGREGATION_BREAKDOWN));
+    }
+
+    @Test
+    public void getTotalIgnoresLabelsWhichWerentQueried() {
+        assertEquals(3, InboxCheckerBadge.getTotal(QUERIED, UNREAD, new String[]{"^i", "Other"}));
+    }
+
+    @Test
+    public void getAccountsTextLeavesOutUnknownCounts() {
+        int[] totals = {2, InboxCheckerBadge.UNKNOWN_COUNT, 4};
+        assertEquals("6", InboxCheckerBadge.getAccountsText(totals,
+                InboxCheckerBadge.AGGREGATION_SUM));
+        assertEquals("2/?/4", InboxCheckerBadge.getAccountsText(totals,
+                InboxCheckerBadge.AGGREGATION_BREAKDOWN));
+    }
+
+    @Test
+    public void getAccountsTextHidesWhenNothingIsKnown() {
+        assertEquals(InboxCheckerBadge.STATE_HIDDEN, InboxCheckerBadge.getAccountsText(
+                new int[]{InboxCheckerBadge.UNKNOWN_COUNT, 0},
+                InboxCheckerBadge.AGGREGATION_BREAKDOWN));
+    }
+
+    @Test
+    public void needsRenderOnlyWhenTheStateChanges() {
+        assertTrue(InboxCheckerBadge.needsRender(null, InboxCheckerBadge.STATE_HIDDEN));
+        assertTrue(InboxCheckerBadge.needsRender("3", "4"));
+        assertFalse(InboxCheckerBadge.needsRender("3", "3"));
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class InboxCheckerHistoryBufferTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("history", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Test
+    public void copyReturnsSamplesOldestFirst() throws IOException {
+        InboxCheckerHistoryBuffer buffer = new InboxCheckerHistoryBuffer(mFile, 4);
+        buffer.record(10, 1);
+        buffer.record(20, 2);
+
+        long[] timestamps = new long[4];
+        int[] counts = new int[4];
+        assertEquals(2, buffer.copy(timestamps, counts));
+        assertArrayEquals(new long[]{10, 20, 0, 0}, timestamps);
+        assertArrayEquals(new int[]{1, 2, 0, 0}, counts);
+    }
+
+    @Test
+    public void recordOverwritesTheOldestSampleWhenFull() throws IOException {
+        InboxCheckerHistoryBuffer buffer = new InboxCheckerHistoryBuffer(mFile, 3);
+        for (int i = 1; i <= 5; i++) {
+            buffer.record(i * 10, i);
+        }
+
+        assertEquals(3, buffer.size());
+        long[] timestamps = new long[3];
+        int[] counts = new int[3];
+        assertEquals(3, buffer.copy(timestamps, counts));
+        assertArrayEquals(new long[]{30, 40, 50}, timestamps);
+        assertArrayEquals(new int[]{3, 4, 5}, counts);
+        assertEquals(4.0f, buffer.getAverage(0), 0.0f);
+        assertEquals(4.5f, buffer.getAverage(35), 0.0f);
+        assertEquals(5, buffer.getMax(0));
+    }
+
+    @Test
+    public void copyKeepsTheNewestSamplesInShortArrays() throws IOException {
+        InboxCheckerHistoryBuffer buffer = new InboxCheckerHistoryBuffer(mFile, 3);
+        for (int i = 1; i <= 4; i++) {
+            buffer.record(i * 10, i);
+        }
+
+        long[] timestamps = new long[2];
+        int[] counts = new int[2];
+        assertEquals(2, buffer.copy(timestamps, counts));
+        assertArrayEquals(new long[]{30, 40}, timestamps);
+        assertArrayEquals(new int[]{3, 4}, counts);
+    }
+
+    @Test
+    public void samplesSurviveReopening() throws IOException {
+        InboxCheckerHistoryBuffer buffer = new InboxCheckerHistoryBuffer(mFile, 3);
+        for (int i = 1; i <= 4; i++) {
+            buffer.record(i * 10, i);
+        }
+
+        InboxCheckerHistoryBuffer reopened = new InboxCheckerHistoryBuffer(mFile, 3);
+        assertEquals(3, reopened.size());
+        assertEquals(4, reopened.getMax(0));
+    }
+
+    @Test
+    public void changingTheCapacityClearsTheBuffer() throws IOException {
+        new InboxCheckerHistoryBuffer(mFile, 3).record(10, 1);
+        assertEquals(0, new InboxCheckerHistoryBuffer(mFile, 5).size());
+    }
+
+    @Test
+    public void corruptHeaderClearsTheBuffer() throws IOException {
+        new InboxCheckerHistoryBuffer(mFile, 3).record(10, 1);
+        /* Point the head past the end of the slots */
+        writeHeaderInt(8, 7);
+        InboxCheckerHistoryBuffer buffer = new InboxCheckerHistoryBuffer(mFile, 3);
+        assertEquals(0, buffer.size());
+
+        buffer.record(20, 2);
+        /* Claim more samples than the buffer holds */
+        writeHeaderInt(12, 4);
+        buffer = new InboxCheckerHistoryBuffer(mFile, 3);
+        assertEquals(0, buffer.size());
+
+        buffer.record(30, 3);
+        long[] timestamps = new long[1];
+        int[] counts = new int[1];
+        assertEquals(1, buffer.copy(timestamps, counts));
+        assertEquals(30, timestamps[0]);
+        assertEquals(3, counts[0]);
+    }
+
+    @Test
+    public void getAverageTimeToZeroAveragesRunsWhichEnd() throws IOException {
+        InboxCheckerHistoryBuffer buffer = new InboxCheckerHistoryBuffer(mFile, 8);
+        assertEquals(-1, buffer.getAverageTimeToZero());
+
+        buffer.record(0, 2);
+        buffer.record(100, 1);
+        buffer.record(300, 0);
+        buffer.record(400, 5);
+        buffer.record(500, 0);
+        /* This run hasn't ended, so it isn't counted */
+        buffer.record(600, 3);
+
+        assertEquals(200, buffer.getAverageTimeToZero());
+    }
+
+    /**
+     * Overwrite an int in the file's header, like a torn or corrupt write would
+     *
+     * @param offset The byte offset of the int
+     * @param value  The value to write
+     * @throws IOException If the file can't be written
+     */
+    private void writeHeaderInt(long offset, int value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(offset);
+            file.writeInt(value);
+        } finally {
+            file.close();
+        }
+    }
+}
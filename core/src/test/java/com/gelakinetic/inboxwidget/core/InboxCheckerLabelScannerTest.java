@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class InboxCheckerLabelScannerTest {
+
+    private static final int NAME = 0;
+    private static final int UNREAD = 1;
+    private static final int URI = 2;
+
+    /**
+     * Label rows over a fixed table of (name, unread, uri) rows
+     */
+    private static class TableRows implements InboxCheckerLabelRows {
+
+        private final String[][] mRows;
+        private int mPosition = -1;
+
+        TableRows(String[]... rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return ++mPosition < mRows.length;
+        }
+
+        @Override
+        public String getString(int column) {
+            return mRows[mPosition][column];
+        }
+
+        @Override
+        public int getInt(int column) {
+            return Integer.parseInt(mRows[mPosition][column]);
+        }
+    }
+
+    @Test
+    public void scanFindsLabelsInAnyOrder() {
+        TableRows rows = new TableRows(
+                new String[]{"^i", "4", "content://inbox"},
+                new String[]{"Work", "2", "content://work"},
+                new String[]{"^t", "7", "content://starred"});
+        String[] labels = {"^t", "^i"};
+        int[] unread = new int[2];
+        String[] uris = new String[2];
+
+        InboxCheckerLabelScanner.scan(rows, NAME, UNREAD, URI, labels, unread, uris);
+
+        assertArrayEquals(new int[]{7, 4}, unread);
+        assertArrayEquals(new String[]{"content://starred", "content://inbox"}, uris);
+    }
+
+    @Test
+    public void scanStopsOnceEveryLabelIsFound() {
+        TableRows rows = new TableRows(
+                new String[]{"Work", "2", null},
+                new String[]{"^i", "4", null},
+                new String[]{"^t", "7", null});
+        int[] unread = new int[1];
+
+        int scanned = InboxCheckerLabelScanner.scan(rows, NAME, UNREAD, new String[]{"^i"},
+                unread);
+
+        assertEquals(2, scanned);
+        assertEquals(4, unread[0]);
+    }
+
+    @Test
+    public void scanLeavesMissingLabelsAlone() {
+        TableRows rows = new TableRows(new String[]{"^i", "4", null});
+        int[] unread = {-1, -1};
+
+        int scanned = InboxCheckerLabelScanner.scan(rows, NAME, UNREAD,
+                new String[]{"^i", "Missing"}, unread);
+
+        assertEquals(1, scanned);
+        assertArrayEquals(new int[]{4, -1}, unread);
+    }
+
+    @Test
+    public void scanSkipsUrisWithoutAColumn() {
+        TableRows rows = new TableRows(new String[]{"^i", "4", "content://inbox"});
+        int[] unread = new int[1];
+        String[] uris = new String[1];
+
+        InboxCheckerLabelScanner.scan(rows, NAME, UNREAD, -1, new String[]{"^i"}, unread, uris);
+
+        assertEquals(4, unread[0]);
+        assertEquals(null, uris[0]);
+    }
+}
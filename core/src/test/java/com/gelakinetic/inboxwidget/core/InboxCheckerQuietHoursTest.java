@@ -0,0 +1,78 @@
+/**
+ * Copyright 2016 Adam Feinstein
+ * <p/>
+ * This file is part of Inbox Widget.
+ * <p/>
+ * Inbox Widget is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Inbox Widget is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Inbox Widget.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.inboxwidget.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InboxCheckerQuietHoursTest {
+
+    /* 22:00 to 07:00, which spans midnight */
+    private static final int NIGHT_START = 22 * 60;
+    private static final int NIGHT_END = 7 * 60;
+
+    /* 09:00 to 17:00 */
+    private static final int DAY_START = 9 * 60;
+    private static final int DAY_END = 17 * 60;
+
+    @Test
+    public void windowIncludesItsStartButNotItsEnd() {
+        assertTrue(InboxCheckerQuietHours.isInside(DAY_START, DAY_END, DAY_START));
+        assertFalse(InboxCheckerQuietHours.isInside(DAY_START, DAY_END, DAY_END));
+        assertTrue(InboxCheckerQuietHours.isInside(NIGHT_START, NIGHT_END, NIGHT_START));
+        assertFalse(InboxCheckerQuietHours.isInside(NIGHT_START, NIGHT_END, NIGHT_END));
+    }
+
+    @Test
+    public void windowSpanningMidnightIncludesBothSides() {
+        assertTrue(InboxCheckerQuietHours.isInside(NIGHT_START, NIGHT_END, 23 * 60 + 59));
+        assertTrue(InboxCheckerQuietHours.isInside(NIGHT_START, NIGHT_END, 0));
+        assertFalse(InboxCheckerQuietHours.isInside(NIGHT_START, NIGHT_END, 12 * 60));
+    }
+
+    @Test
+    public void minutesUntilEndBeforeMidnight() {
+        assertEquals(9 * 60, InboxCheckerQuietHours.getMinutesUntilEnd(NIGHT_START, NIGHT_END,
+                NIGHT_START));
+        assertEquals(7 * 60 + 1, InboxCheckerQuietHours.getMinutesUntilEnd(NIGHT_START,
+                NIGHT_END, 23 * 60 + 59));
+    }
+
+    @Test
+    public void minutesUntilEndAfterMidnight() {
+        assertEquals(7 * 60, InboxCheckerQuietHours.getMinutesUntilEnd(NIGHT_START, NIGHT_END,
+                0));
+        assertEquals(1, InboxCheckerQuietHours.getMinutesUntilEnd(NIGHT_START, NIGHT_END,
+                NIGHT_END - 1));
+    }
+
+    @Test
+    public void minutesUntilEndIsZeroOutsideTheWindow() {
+        assertEquals(0, InboxCheckerQuietHours.getMinutesUntilEnd(NIGHT_START, NIGHT_END,
+                12 * 60));
+        assertEquals(0, InboxCheckerQuietHours.getMinutesUntilEnd(DAY_START, DAY_END,
+                DAY_END));
+        assertEquals(60, InboxCheckerQuietHours.getMinutesUntilEnd(DAY_START, DAY_END,
+                16 * 60));
+    }
+}